@@ -1,6 +1,49 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 // Уровни сообщений
 enum LogSeverity {
@@ -9,17 +52,86 @@ enum LogSeverity {
     HIGH
 }
 
+// Неизменяемый снимок настроек логирования; при изменении заменяется целиком
+final class LogConfig {
+    private final LogSeverity logSeverity;
+    private final String logFile;
+    private final LogFormat logFormat;
+
+    public LogConfig(LogSeverity logSeverity, String logFile, LogFormat logFormat) {
+        this.logSeverity = logSeverity;
+        this.logFile = logFile;
+        this.logFormat = logFormat;
+    }
+
+    public LogSeverity getLogSeverity() {
+        return logSeverity;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public LogFormat getLogFormat() {
+        return logFormat;
+    }
+
+    public boolean isEnabled(LogSeverity severity) {
+        return severity.ordinal() >= logSeverity.ordinal();
+    }
+
+    public LogConfig withLogSeverity(LogSeverity severity) {
+        return new LogConfig(severity, logFile, logFormat);
+    }
+
+    public LogConfig withLogFormat(LogFormat format) {
+        return new LogConfig(logSeverity, logFile, format);
+    }
+
+    // Разбор файла конфигурации; отсутствующие ключи берутся из base
+    public static LogConfig parse(BufferedReader reader, LogConfig base) throws IOException {
+        LogSeverity severity = base.logSeverity;
+        String file = base.logFile;
+        LogFormat format = base.logFormat;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split("=", 2);
+            if (parts.length < 2) {
+                continue;
+            }
+            String key = parts[0].trim();
+            String value = parts[1].trim();
+            if (key.equals("LogSeverity")) {
+                severity = LogSeverity.valueOf(value);
+            } else if (key.equals("LogFile")) {
+                file = value;
+            } else if (key.equals("LogFormat")) {
+                format = LogFormat.valueOf(value);
+            }
+        }
+        return new LogConfig(severity, file, format);
+    }
+}
+
 // Одиночка для логирования
 class LogSystem {
     private static LogSystem instance;
     private static Object lock = new Object();
-    private LogSeverity logSeverity;
-    private String logFile;
+    private volatile LogConfig config;
+    private volatile SegmentedLogFile segmentedFile;
+    private volatile AsyncLogAppender asyncAppender;
+    private long rotationMaxBytes;
+    private long rotationMaxAgeMillis;
+    private boolean compressSegments;
+    private int asyncQueueCapacity;
+    private int asyncBatchSize;
+    private long asyncFlushIntervalMillis;
+    private OverflowPolicy asyncPolicy;
+    private WatchService configWatchService;
 
     // Приватный конструктор
     private LogSystem() {
-        logSeverity = LogSeverity.LOW;
-        logFile = "log_output.txt"; // Файл логов по умолчанию
+        config = new LogConfig(LogSeverity.LOW, "log_output.txt", LogFormat.TEXT); // Файл логов по умолчанию
     }
 
     // Возврат единственного экземпляра
@@ -34,55 +146,1565 @@ class LogSystem {
         return instance;
     }
 
+    // Текущий снимок настроек
+    public LogConfig getConfig() {
+        return config;
+    }
+
+    // Быстрая проверка уровня: позволяет не строить сообщение для отключенных уровней
+    public boolean isEnabled(LogSeverity severity) {
+        return config.isEnabled(severity);
+    }
+
     // Установка уровня важности сообщений
-    public void setLogSeverity(LogSeverity severity) {
-        logSeverity = severity;
+    public synchronized void setLogSeverity(LogSeverity severity) {
+        config = config.withLogSeverity(severity);
     }
 
     // Запись сообщений в лог
     public void writeLog(String message, LogSeverity severity) throws IOException {
-        if (severity.ordinal() >= logSeverity.ordinal()) {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true));
-            writer.write(new Date() + " [" + severity + "] " + message);
+        if (!config.isEnabled(severity)) {
+            return;
+        }
+        long epochNanos = LogRecordCodec.currentEpochNanos();
+        AsyncLogAppender appender = asyncAppender;
+        if (appender != null && (appender.append(epochNanos, severity, message) || appender.isRunning())) {
+            return; // Событие принято в очередь или отброшено политикой DROP
+        }
+        if (writeTo(segmentedFile, epochNanos, severity, message)) {
+            return;
+        }
+        // Цепочка записи отсутствует или пересоздается: повтор после ее публикации
+        synchronized (this) {
+            if (writeTo(segmentedFile, epochNanos, severity, message)) {
+                return;
+            }
+            if (config.getLogFormat() == LogFormat.BINARY) {
+                throw new IOException("Двоичный лог закрыт");
+            }
+            BufferedWriter writer = new BufferedWriter(new FileWriter(config.getLogFile(), true));
+            writer.write(LogRecordCodec.formatText(epochNanos, severity, message));
             writer.newLine();
             writer.close();
         }
     }
 
-    // Загрузка конфигурации из файла
+    // Запись в формате самого файла; false, если файл закрыт. Двоичная запись кодируется
+    // в буфер потока без мусора, текстовая строка синхронной записи собирается для каждого события
+    private boolean writeTo(SegmentedLogFile target, long epochNanos, LogSeverity severity,
+                            String message) throws IOException {
+        if (target == null) {
+            return false;
+        }
+        if (target.getFormat() == LogFormat.BINARY) {
+            return target.write(LogRecordCodec.encode(epochNanos, severity, message));
+        }
+        return target.write(LogRecordCodec.formatText(epochNanos, severity, message) + System.lineSeparator());
+    }
+
+    // Включение асинхронной пакетной записи
+    public synchronized void enableAsync(int queueCapacity, int batchSize, long flushIntervalMillis,
+                                         OverflowPolicy policy) throws IOException {
+        asyncQueueCapacity = queueCapacity;
+        asyncBatchSize = batchSize;
+        asyncFlushIntervalMillis = flushIntervalMillis;
+        asyncPolicy = policy;
+        reopen();
+    }
+
+    // Выбор формата записи; двоичный лог лучше вести в отдельном файле
+    public synchronized void setLogFormat(LogFormat format) throws IOException {
+        applyConfig(config.withLogFormat(format));
+    }
+
+    // Включение ротации: сегмент закрывается по размеру или возрасту, 0 - без ограничения
+    public synchronized void enableRotation(long maxBytes, long maxAgeMillis, boolean compress) throws IOException {
+        rotationMaxBytes = maxBytes;
+        rotationMaxAgeMillis = maxAgeMillis;
+        compressSegments = compress;
+        reopen();
+    }
+
+    // Публикация нового снимка; смена файла или формата пересоздает цепочку записи
+    private void applyConfig(LogConfig next) throws IOException {
+        LogConfig previous = config;
+        config = next;
+        if (!next.getLogFile().equals(previous.getLogFile()) || next.getLogFormat() != previous.getLogFormat()) {
+            reopen();
+        }
+    }
+
+    // Пересоздание цепочки записи по текущим настройкам
+    private void reopen() throws IOException {
+        closeWriters();
+        LogConfig current = config;
+        if (rotationMaxBytes > 0 || rotationMaxAgeMillis > 0 || asyncPolicy != null
+                || current.getLogFormat() == LogFormat.BINARY) {
+            segmentedFile = new SegmentedLogFile(current.getLogFile(), current.getLogFormat(), rotationMaxBytes,
+                    rotationMaxAgeMillis, compressSegments);
+        }
+        if (asyncPolicy != null) {
+            asyncAppender = new AsyncLogAppender(segmentedFile, current.getLogFormat(), asyncQueueCapacity,
+                    asyncBatchSize, asyncFlushIntervalMillis, asyncPolicy);
+        }
+    }
+
+    // Сброс накопленных событий на диск
+    public void flush() {
+        AsyncLogAppender appender = asyncAppender;
+        if (appender != null) {
+            appender.flush();
+        }
+    }
+
+    // Остановка наблюдения за конфигурацией и асинхронной записи без потери событий
+    public synchronized void shutdown() {
+        stopWatchingConfig();
+        closeWriters();
+    }
+
+    private void closeWriters() {
+        AsyncLogAppender appender = asyncAppender;
+        if (appender != null) {
+            asyncAppender = null;
+            appender.shutdown();
+        }
+        SegmentedLogFile target = segmentedFile;
+        if (target != null) {
+            segmentedFile = null;
+            target.close();
+        }
+    }
+
+    // Загрузка конфигурации из файла; при ошибке разбора действует прежний снимок
     public void loadConfig(String configFile) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(configFile));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split("=");
-            if (parts[0].equals("LogSeverity")) {
-                setLogSeverity(LogSeverity.valueOf(parts[1]));
-            } else if (parts[0].equals("LogFile")) {
-                logFile = parts[1];
+        LogConfig loaded;
+        try (BufferedReader reader = new BufferedReader(new FileReader(configFile))) {
+            loaded = LogConfig.parse(reader, config);
+        }
+        synchronized (this) {
+            applyConfig(loaded);
+        }
+    }
+
+    // Перечитывание конфигурации при каждом изменении файла, без перезапуска
+    public synchronized void watchConfig(String configFile) throws IOException {
+        stopWatchingConfig();
+        loadConfig(configFile);
+        Path path = Paths.get(configFile).toAbsolutePath();
+        WatchService service = path.getFileSystem().newWatchService();
+        path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        configWatchService = service;
+        Thread watcher = new Thread(() -> watchLoop(service, path), "log-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void stopWatchingConfig() {
+        if (configWatchService != null) {
+            try {
+                configWatchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            configWatchService = null;
+        }
+    }
+
+    private void watchLoop(WatchService service, Path configFile) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (configFile.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    try {
+                        loadConfig(configFile.toString());
+                    } catch (IOException | IllegalArgumentException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Наблюдение остановлено
+        }
+    }
+}
+
+// Поведение при переполнении очереди асинхронной записи
+enum OverflowPolicy {
+    BLOCK, // Ждать освобождения места
+    DROP   // Отбросить событие
+}
+
+// Асинхронная запись логов: потоки кладут события в ограниченное кольцо заранее выделенных
+// ячеек, один фоновый поток форматирует и пишет их пачками в постоянно открытый канал.
+// Постановка события ничего не создает: в ячейку пишутся время, уровень и ссылка на сообщение
+class AsyncLogAppender {
+    private final int mask;
+    private final AtomicLongArray sequences; // Ячейка ждет позицию p или содержит событие p - 1
+    private final long[] times;
+    private final LogSeverity[] severities;
+    private final String[] messages;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // Только фоновый поток
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final OverflowPolicy policy;
+    private final SegmentedLogFile target;
+    private final LogFormat format;
+    private final Thread writerThread;
+    private final StringBuilder batchText = new StringBuilder();
+    private final CharsetEncoder textEncoder;
+    private ByteBuffer batchBytes = ByteBuffer.allocateDirect(64 * 1024);
+    private long dateSecond = Long.MIN_VALUE; // Секунда, для которой построена dateText
+    private String dateText;
+    private volatile boolean running = true;
+    private volatile long written;
+
+    public AsyncLogAppender(SegmentedLogFile target, LogFormat format, int capacity, int batchSize, long flushIntervalMillis,
+                            OverflowPolicy policy) {
+        if (capacity <= 0 || batchSize <= 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Параметры очереди должны быть положительными");
+        }
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = slots - 1;
+        sequences = new AtomicLongArray(slots);
+        times = new long[slots];
+        severities = new LogSeverity[slots];
+        messages = new String[slots];
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, slots);
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000L;
+        this.policy = policy;
+        this.target = target;
+        this.format = format;
+        this.textEncoder = target.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.writerThread = new Thread(this::drainLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Постановка события в очередь; false, если событие не принято
+    public boolean append(long epochNanos, LogSeverity severity, String message) {
+        int current;
+        while (true) {
+            current = size.get();
+            if (current < capacity) {
+                if (size.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            } else if (policy == OverflowPolicy.DROP || !running) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(100_000);
+            }
+        }
+        // Место уже занято, поэтому фоновый поток дождется этой строки даже при остановке
+        if (!running) {
+            size.decrementAndGet();
+            return false;
+        }
+        // Занятое место гарантирует свободную ячейку: ее освобождают до уменьшения size
+        long position = tail.getAndIncrement();
+        int slot = (int) position & mask;
+        while (sequences.get(slot) != position) {
+            Thread.onSpinWait();
+        }
+        times[slot] = epochNanos;
+        severities[slot] = severity;
+        messages[slot] = message;
+        sequences.set(slot, position + 1);
+        accepted.incrementAndGet();
+        if (current + 1 >= batchSize) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Ожидание записи всех принятых к этому моменту строк
+    public void flush() {
+        long target = accepted.get();
+        while (written < target && writerThread.isAlive()) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    // Остановка фонового потока: оставшиеся строки дописываются в файл
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (running || size.get() > 0) {
+            int count = 0;
+            while (count < batchSize && sequences.get((int) (head + count) & mask) == head + count + 1) {
+                count++;
+            }
+            if (count > 0) {
+                writeBatch(count);
+                for (int i = 0; i < count; i++, head++) {
+                    int slot = (int) head & mask;
+                    messages[slot] = null; // Сообщение не удерживается кольцом после записи
+                    sequences.set(slot, head + mask + 1);
+                }
+                size.addAndGet(-count);
+            } else if (running && size.get() == 0) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            } else {
+                Thread.onSpinWait(); // Место занято, но событие еще не записано в ячейку
+            }
+        }
+    }
+
+    // Одна запись в файл на всю пачку из count ячеек начиная с head
+    private void writeBatch(int count) {
+        try {
+            batchBytes.clear();
+            if (format == LogFormat.BINARY) {
+                for (long position = head; position < head + count; position++) {
+                    int slot = (int) position & mask;
+                    batchBytes = LogRecordCodec.encode(batchBytes, times[slot], severities[slot], messages[slot]);
+                }
+            } else {
+                batchText.setLength(0);
+                for (long position = head; position < head + count; position++) {
+                    int slot = (int) position & mask;
+                    appendText(times[slot], severities[slot], messages[slot]);
+                }
+                encodeText();
+            }
+            batchBytes.flip();
+            target.write(batchBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        written += count;
+    }
+
+    // Строка в формате LogRecordCodec.formatText; дата с точностью до секунды строится
+    // один раз в секунду, а не для каждого события
+    private void appendText(long epochNanos, LogSeverity severity, String message) {
+        long second = Math.floorDiv(epochNanos, 1_000_000_000L);
+        if (second != dateSecond) {
+            dateText = new Date(second * 1000).toString();
+            dateSecond = second;
+        }
+        batchText.append(dateText).append(" [").append(severity).append("] ").append(message)
+                .append(System.lineSeparator());
+    }
+
+    // Кодирование текста пачки в batchBytes кодировкой файла
+    private void encodeText() {
+        int maxBytes = (int) Math.ceil(batchText.length() * (double) textEncoder.maxBytesPerChar());
+        if (batchBytes.capacity() < maxBytes) {
+            batchBytes = ByteBuffer.allocateDirect(Math.max(batchBytes.capacity() * 2, maxBytes));
+        }
+        textEncoder.reset();
+        textEncoder.encode(CharBuffer.wrap(batchText), batchBytes, true);
+        textEncoder.flush(batchBytes);
+    }
+}
+
+// Формат записи лога
+enum LogFormat {
+    TEXT,  // Строка "дата [уровень] сообщение"
+    BINARY // Двоичные записи LogRecordCodec
+}
+
+// Двоичная запись лога: время в наносекундах от эпохи, номер уровня и длина с сообщением в UTF-8.
+// Кодирование идет в буфер потока, поэтому запись события не создает мусора
+final class LogRecordCodec {
+    static final int FILE_MAGIC = 0x4C4F4742; // Начало каждого двоичного файла
+    static final int HEADER_SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+
+    private LogRecordCodec() {
+    }
+
+    // Instant не покидает метод и устраняется JIT
+    static long currentEpochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    // Текстовое представление записи в прежнем формате лога
+    static String formatText(long epochNanos, LogSeverity severity, String message) {
+        return new Date(Math.floorDiv(epochNanos, 1_000_000L)) + " [" + severity + "] " + message;
+    }
+
+    // Кодирование одной записи в буфер текущего потока; результат готов к записи в канал
+    static ByteBuffer encode(long epochNanos, LogSeverity severity, CharSequence message) {
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        ByteBuffer encoded = encode(buffer, epochNanos, severity, message);
+        if (encoded != buffer) {
+            BUFFERS.set(encoded);
+        }
+        encoded.flip();
+        return encoded;
+    }
+
+    // Дописывание записи в буфер; при нехватке места возвращается увеличенная копия
+    static ByteBuffer encode(ByteBuffer buffer, long epochNanos, LogSeverity severity, CharSequence message) {
+        int maxSize = HEADER_SIZE + message.length() * 3;
+        if (buffer.remaining() < maxSize) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + maxSize));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.putLong(epochNanos).put((byte) severity.ordinal());
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        int start = buffer.position();
+        putUtf8(buffer, message);
+        buffer.putInt(lengthPosition, buffer.position() - start);
+        return buffer;
+    }
+
+    // Кодирование в UTF-8 без промежуточного массива; одиночные суррогаты заменяются на '?'
+    private static void putUtf8(ByteBuffer buffer, CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    // Заголовок нового двоичного файла
+    static ByteBuffer fileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        header.putInt(FILE_MAGIC).flip();
+        return header;
+    }
+
+    // Проверка сегмента (в том числе сжатого) на двоичный формат
+    static boolean isBinary(Path segment) throws IOException {
+        try (InputStream in = LogRecordReader.open(segment)) {
+            byte[] magic = in.readNBytes(Integer.BYTES);
+            return magic.length == Integer.BYTES && ByteBuffer.wrap(magic).getInt() == FILE_MAGIC;
+        }
+    }
+}
+
+// Последовательное чтение двоичных записей; сообщение декодируется только по запросу
+class LogRecordReader implements Closeable {
+    private static final LogSeverity[] SEVERITIES = LogSeverity.values();
+
+    private final DataInputStream in;
+    private long epochNanos;
+    private LogSeverity severity;
+    private byte[] message = new byte[256];
+    private int messageLength;
+
+    public LogRecordReader(Path segment) throws IOException {
+        this.in = new DataInputStream(open(segment));
+        if (in.readInt() != LogRecordCodec.FILE_MAGIC) {
+            in.close();
+            throw new IOException("Файл не является двоичным логом: " + segment);
+        }
+    }
+
+    static InputStream open(Path segment) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(segment), 64 * 1024);
+        return SegmentedLogFile.isCompressed(segment) ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    // Переход к следующей записи; недописанная запись в конце файла пропускается.
+    // Запись с неизвестным уровнем или длиной считается поврежденной: границы следующих
+    // записей неизвестны, поэтому чтение останавливается так же, как на недописанной
+    public boolean next() throws IOException {
+        try {
+            epochNanos = in.readLong();
+            int ordinal = in.readUnsignedByte();
+            if (ordinal >= SEVERITIES.length) {
+                return false;
+            }
+            severity = SEVERITIES[ordinal];
+            messageLength = in.readInt();
+            if (messageLength < 0) {
+                return false;
+            }
+            if (message.length < messageLength) {
+                message = new byte[Math.max(messageLength, message.length * 2)];
+            }
+            in.readFully(message, 0, messageLength);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public long getEpochMillis() {
+        return Math.floorDiv(epochNanos, 1_000_000L);
+    }
+
+    public LogSeverity getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return new String(message, 0, messageLength, StandardCharsets.UTF_8);
+    }
+
+    // Текущая запись в текстовом формате лога
+    public String toText() {
+        return LogRecordCodec.formatText(epochNanos, severity, getMessage());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
+
+// Лог-файл с ротацией: активный файл закрывается по размеру или возрасту и становится
+// нумерованным сегментом <файл>.N, закрытые сегменты при необходимости сжимаются в <файл>.N.gz
+class SegmentedLogFile {
+    private static final long INDEX_BUCKET_MILLIS = 60_000;
+
+    private final Path activeFile;
+    private final LogFormat format;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final ExecutorService compressor;
+    private final Charset charset = Charset.defaultCharset();
+    private FileChannel channel;
+    private long size;
+    private long openedAt;
+    private int nextSegment;
+    private boolean closed;
+
+    public SegmentedLogFile(String logFile, LogFormat format, long maxBytes, long maxAgeMillis,
+                            boolean compress) throws IOException {
+        this.activeFile = Paths.get(logFile).toAbsolutePath();
+        this.format = format;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.compressor = compress ? Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "log-compressor");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        List<Path> segments = listSegments(logFile);
+        for (Path segment : segments) {
+            nextSegment = Math.max(nextSegment, segmentNumber(segment));
+        }
+        nextSegment++;
+        openActive();
+        // Файл другого формата закрывается в сегмент, чтобы не смешивать форматы
+        if (size > 0 && LogRecordCodec.isBinary(activeFile) != (format == LogFormat.BINARY)) {
+            rotate();
+        }
+    }
+
+    public LogFormat getFormat() {
+        return format;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    // Запись текста с ротацией при необходимости; false, если файл уже закрыт
+    public boolean write(String text) throws IOException {
+        return write(ByteBuffer.wrap(text.getBytes(charset)));
+    }
+
+    // Запись готовых байтов одним обращением к каналу
+    public synchronized boolean write(ByteBuffer bytes) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (size > headerSize() && ((maxBytes > 0 && size + bytes.remaining() > maxBytes)
+                || (maxAgeMillis > 0 && System.currentTimeMillis() - openedAt >= maxAgeMillis))) {
+            rotate();
+        }
+        while (bytes.hasRemaining()) {
+            size += channel.write(bytes);
+        }
+        return true;
+    }
+
+    // Закрытие файла с ожиданием начатого сжатия сегментов
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int headerSize() {
+        return format == LogFormat.BINARY ? Integer.BYTES : 0;
+    }
+
+    private void openActive() throws IOException {
+        channel = FileChannel.open(activeFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        openedAt = System.currentTimeMillis();
+        if (size == 0 && format == LogFormat.BINARY) {
+            ByteBuffer header = LogRecordCodec.fileHeader();
+            while (header.hasRemaining()) {
+                size += channel.write(header);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        Path sealed = activeFile.resolveSibling(activeFile.getFileName() + "." + nextSegment++);
+        Files.move(activeFile, sealed);
+        // Индекс переезжает вместе с содержимым и дальше только дописывается
+        Path activeIndex = indexPathFor(activeFile);
+        if (Files.exists(activeIndex)) {
+            Files.move(activeIndex, indexPathFor(sealed), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (compressor != null) {
+            compressor.execute(() -> compressSegment(sealed));
+        }
+        openActive();
+    }
+
+    // Сжатие закрытого сегмента; индекс строится заранее и хранит смещения несжатых данных
+    private void compressSegment(Path sealed) {
+        Path compressed = Paths.get(sealed + ".gz");
+        Path tmp = Paths.get(compressed + ".tmp");
+        try {
+            if (!LogRecordCodec.isBinary(sealed)) {
+                Path indexFile = indexPathFor(sealed);
+                LogIndex index = LogIndex.open(indexFile, INDEX_BUCKET_MILLIS);
+                try (FileChannel in = FileChannel.open(sealed, StandardOpenOption.READ)) {
+                    index.update(in);
+                }
+                index.save(indexFile);
+            }
+            try (InputStream in = Files.newInputStream(sealed);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            Files.move(tmp, compressed, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(sealed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Закрытые сегменты по возрастанию номера и активный файл последним
+    public static List<Path> listSegments(String logFile) throws IOException {
+        Path active = Paths.get(logFile).toAbsolutePath();
+        TreeMap<Integer, Path> sealed = new TreeMap<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(active.getParent(), active.getFileName() + ".*")) {
+            for (Path path : dir) {
+                if (parseSegmentNumber(active, path) > 0) {
+                    // Пока сегмент сжимается, существуют обе копии; готовая сжатая предпочтительнее
+                    sealed.merge(parseSegmentNumber(active, path), path, (a, b) -> isCompressed(a) ? a : b);
+                }
+            }
+        }
+        List<Path> result = new ArrayList<>(sealed.values());
+        if (Files.exists(active)) {
+            result.add(active);
+        }
+        return result;
+    }
+
+    // Номер сегмента по имени вида <файл>.N или <файл>.N.gz, иначе -1
+    private static int parseSegmentNumber(Path active, Path path) {
+        String prefix = active.getFileName() + ".";
+        String name = path.getFileName().toString();
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        String number = name.substring(prefix.length());
+        if (number.endsWith(".gz")) {
+            number = number.substring(0, number.length() - 3);
+        }
+        if (number.isEmpty() || number.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') {
+                return -1;
             }
         }
-        reader.close();
+        return Integer.parseInt(number);
+    }
+
+    private int segmentNumber(Path segment) {
+        return Math.max(0, parseSegmentNumber(activeFile, segment));
+    }
+
+    public static boolean isCompressed(Path segment) {
+        return segment.getFileName().toString().endsWith(".gz");
+    }
+
+    // Индекс сжатого сегмента общий с его несжатой версией
+    public static Path indexPathFor(Path segment) {
+        String name = segment.getFileName().toString();
+        if (isCompressed(segment)) {
+            name = name.substring(0, name.length() - 3);
+        }
+        return segment.resolveSibling(name + ".idx");
+    }
+}
+
+// Построчное чтение потока с учетом байтовых смещений строк
+class LogLineReader {
+    private final InputStream in;
+    private final Charset charset;
+    private byte[] buffer = new byte[64 * 1024];
+    private long bufferOffset;
+    private int start;
+    private int scan;
+    private int end;
+    private int lineStart;
+    private int lineEnd;
+    private long lineOffset;
+    private boolean eof;
+
+    public LogLineReader(InputStream in, Charset charset) {
+        this.in = in;
+        this.charset = charset;
+    }
+
+    // Переход к следующей строке; false в конце потока
+    public boolean next() throws IOException {
+        while (true) {
+            for (; scan < end; scan++) {
+                if (buffer[scan] == '\n') {
+                    setLine(scan);
+                    start = ++scan;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (start == end) {
+                    return false;
+                }
+                setLine(end);
+                start = end;
+                return true;
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                bufferOffset += start;
+                end -= start;
+                scan -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+            } else {
+                end += read;
+            }
+        }
+    }
+
+    private void setLine(int to) {
+        lineStart = start;
+        lineEnd = to > start && buffer[to - 1] == '\r' ? to - 1 : to;
+        lineOffset = bufferOffset + start;
+    }
+
+    // Смещение начала текущей строки
+    public long offset() {
+        return lineOffset;
+    }
+
+    // Смещение за последним прочитанным байтом
+    public long position() {
+        return bufferOffset + start;
+    }
+
+    public String line() {
+        return new String(buffer, lineStart, lineEnd - lineStart, charset);
     }
 }
 
-// Чтение логов с фильтрацией
+// Индекс лог-файла: смещения строк по уровням важности и начала временных интервалов
+class LogIndex {
+    private static final int MAGIC = 0x4C4F4732;
+    private static final int HEAD_LENGTH = 256;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    private final long bucketMillis;
+    private final long[][] severityOffsets = new long[LogSeverity.values().length][];
+    private final int[] severityCounts = new int[LogSeverity.values().length];
+    private long[] bucketKeys;
+    private long[] bucketOffsets;
+    private int bucketCount;
+    private long indexedLength;
+    private long lastTimestamp;
+    // Отпечаток начала файла: при его смене файл считается замененным (ротация)
+    private int headLength;
+    private long headHash;
+
+    public LogIndex(long bucketMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("Размер интервала должен быть положительным");
+        }
+        this.bucketMillis = bucketMillis;
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < severityOffsets.length; i++) {
+            severityOffsets[i] = new long[16];
+            severityCounts[i] = 0;
+        }
+        bucketKeys = new long[16];
+        bucketOffsets = new long[16];
+        bucketCount = 0;
+        indexedLength = 0;
+        lastTimestamp = Long.MIN_VALUE;
+        headLength = 0;
+        headHash = 0;
+    }
+
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    // Добавление строки; строки без метки времени относятся к текущему интервалу
+    public void add(long offset, long timestamp, LogSeverity severity) {
+        if (timestamp != Long.MIN_VALUE) {
+            long bucket = Math.floorDiv(timestamp, bucketMillis);
+            // Лог упорядочен по времени, поэтому новый интервал открывается только при росте ключа
+            if (bucketCount == 0 || bucket > bucketKeys[bucketCount - 1]) {
+                if (bucketCount == bucketKeys.length) {
+                    bucketKeys = Arrays.copyOf(bucketKeys, bucketCount * 2);
+                    bucketOffsets = Arrays.copyOf(bucketOffsets, bucketCount * 2);
+                }
+                bucketKeys[bucketCount] = bucket;
+                bucketOffsets[bucketCount] = offset;
+                bucketCount++;
+            }
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+        }
+        if (severity != null) {
+            int s = severity.ordinal();
+            if (severityCounts[s] == severityOffsets[s].length) {
+                severityOffsets[s] = Arrays.copyOf(severityOffsets[s], severityCounts[s] * 2);
+            }
+            severityOffsets[s][severityCounts[s]++] = offset;
+        }
+    }
+
+    public void setIndexedLength(long indexedLength) {
+        this.indexedLength = indexedLength;
+    }
+
+    // Дописывание строк, появившихся после прошлого обновления; усеченный или
+    // замененный файл индексируется заново. true, если индекс изменился
+    public boolean update(FileChannel channel) throws IOException {
+        long size = channel.size();
+        boolean changed = false;
+        if (indexedLength > size || (headLength > 0 && headHash != hashHead(channel, headLength))) {
+            reset();
+            changed = true;
+        }
+        long position = indexedLength;
+        Charset charset = Charset.defaultCharset();
+        while (position < size) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_WINDOW, size - position));
+            int lineStart = 0;
+            for (int i = 0; i < window.limit(); i++) {
+                if (window.get(i) == '\n') {
+                    String line = decodeLine(window, lineStart, i, charset);
+                    add(position + lineStart, parseLineTimestamp(line), parseLineSeverity(line));
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0) {
+                break; // Недописанная строка в конце файла попадет в индекс позже
+            }
+            if (headLength == 0) {
+                headLength = (int) Math.min(HEAD_LENGTH, position + lineStart);
+                headHash = hashHead(channel, headLength);
+            }
+            position += lineStart;
+            changed = true;
+        }
+        indexedLength = position;
+        return changed;
+    }
+
+    private static long hashHead(FileChannel channel, int length) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(length);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // Чтение начала файла целиком
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < head.position(); i++) {
+            hash = (hash ^ head.get(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Смещение первой строки интервала, в который попадает момент времени
+    public long bucketStart(long timeMillis) {
+        if (timeMillis == Long.MIN_VALUE) {
+            return 0;
+        }
+        int i = firstBucketAtLeast(Math.floorDiv(timeMillis, bucketMillis));
+        return i < bucketCount ? bucketOffsets[i] : indexedLength;
+    }
+
+    // Смещение за последней строкой интервала, в который попадает момент времени
+    public long bucketEnd(long timeMillis) {
+        if (timeMillis == Long.MAX_VALUE) {
+            return indexedLength;
+        }
+        int i = firstBucketAtLeast(Math.floorDiv(timeMillis, bucketMillis) + 1);
+        return i < bucketCount ? bucketOffsets[i] : indexedLength;
+    }
+
+    // Смещения строк заданного уровня в диапазоне [from, to)
+    public long[] offsets(LogSeverity severity, long from, long to) {
+        int s = severity.ordinal();
+        int lo = lowerBound(severityOffsets[s], severityCounts[s], from);
+        int hi = lowerBound(severityOffsets[s], severityCounts[s], to);
+        return Arrays.copyOfRange(severityOffsets[s], lo, Math.max(lo, hi));
+    }
+
+    private int firstBucketAtLeast(long bucket) {
+        return lowerBound(bucketKeys, bucketCount, bucket);
+    }
+
+    private static int lowerBound(long[] values, int count, long key) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Разбор метки времени в формате Date.toString()
+    public static long parseTimestamp(String text) {
+        try {
+            return ZonedDateTime.parse(text, DATE_FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Разбор строки лога: метка времени до " [", уровень в квадратных скобках
+    public static long parseLineTimestamp(String line) {
+        int bracket = line.indexOf(" [");
+        return bracket > 0 ? parseTimestamp(line.substring(0, bracket)) : Long.MIN_VALUE;
+    }
+
+    public static LogSeverity parseLineSeverity(String line) {
+        int open = line.indexOf(" [");
+        int close = open < 0 ? -1 : line.indexOf(']', open);
+        if (close < 0) {
+            return null;
+        }
+        String name = line.substring(open + 2, close);
+        for (LogSeverity severity : LogSeverity.values()) {
+            if (severity.name().equals(name)) {
+                return severity;
+            }
+        }
+        return null;
+    }
+
+    public static String decodeLine(ByteBuffer buffer, int from, int to, Charset charset) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, charset);
+    }
+
+    // Индекс из вспомогательного файла или пустой, если файла нет или он не подходит
+    public static LogIndex open(Path indexFile, long bucketMillis) throws IOException {
+        LogIndex index = load(indexFile, bucketMillis);
+        return index != null ? index : new LogIndex(bucketMillis);
+    }
+
+    // Сохранение индекса во вспомогательный файл рядом с логом
+    public void save(Path indexFile) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(bucketMillis);
+            out.writeLong(indexedLength);
+            out.writeLong(lastTimestamp);
+            out.writeInt(headLength);
+            out.writeLong(headHash);
+            for (int s = 0; s < severityOffsets.length; s++) {
+                out.writeInt(severityCounts[s]);
+                for (int i = 0; i < severityCounts[s]; i++) {
+                    out.writeLong(severityOffsets[s][i]);
+                }
+            }
+            out.writeInt(bucketCount);
+            for (int i = 0; i < bucketCount; i++) {
+                out.writeLong(bucketKeys[i]);
+                out.writeLong(bucketOffsets[i]);
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Загрузка индекса; null, если файл отсутствует или построен с другим интервалом
+    public static LogIndex load(Path indexFile, long bucketMillis) throws IOException {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readLong() != bucketMillis) {
+                return null;
+            }
+            LogIndex index = new LogIndex(bucketMillis);
+            index.indexedLength = in.readLong();
+            index.lastTimestamp = in.readLong();
+            index.headLength = in.readInt();
+            index.headHash = in.readLong();
+            for (int s = 0; s < index.severityOffsets.length; s++) {
+                int count = in.readInt();
+                index.severityOffsets[s] = new long[Math.max(16, count)];
+                for (int i = 0; i < count; i++) {
+                    index.severityOffsets[s][i] = in.readLong();
+                }
+                index.severityCounts[s] = count;
+            }
+            int count = in.readInt();
+            index.bucketKeys = new long[Math.max(16, count)];
+            index.bucketOffsets = new long[Math.max(16, count)];
+            for (int i = 0; i < count; i++) {
+                index.bucketKeys[i] = in.readLong();
+                index.bucketOffsets[i] = in.readLong();
+            }
+            index.bucketCount = count;
+            return index;
+        } catch (EOFException | NoSuchFileException e) {
+            return null; // Поврежденный или переехавший индекс строится заново
+        }
+    }
+}
+
+// Чтение логов с фильтрацией: сегменты просматриваются параллельно по индексам,
+// несжатые читаются через отображение в память, сжатые - потоком
 class LogFilter {
-    private String logFile;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private final String logFile;
+    private final long bucketMillis;
+    private final ForkJoinPool pool;
+    private final Charset charset = Charset.defaultCharset();
+    private final Map<Path, LogIndex> indexes = new ConcurrentHashMap<>();
 
     public LogFilter(String logFile) {
+        this(logFile, 60_000);
+    }
+
+    public LogFilter(String logFile, long bucketMillis) {
+        this(logFile, bucketMillis, ForkJoinPool.commonPool());
+    }
+
+    public LogFilter(String logFile, long bucketMillis, ForkJoinPool pool) {
         this.logFile = logFile;
+        this.bucketMillis = bucketMillis;
+        this.pool = pool;
     }
 
     // Чтение и фильтрация логов по уровню
     public void filterLogs(LogSeverity severity) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(logFile));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.contains("[" + severity + "]")) {
-                System.out.println(line);
+        filterLogs(severity, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Чтение и фильтрация логов по уровню и интервалу времени
+    public void filterLogs(LogSeverity severity, Date from, Date to) throws IOException {
+        filterLogs(severity, from.getTime(), to.getTime());
+    }
+
+    // Подписка на новые строки заданного уровня, дописываемые в лог
+    public LogTail follow(LogSeverity severity) throws IOException {
+        return new LogTail(logFile, severity, Flow.defaultBufferSize());
+    }
+
+    // Вызов consumer для каждой новой строки заданного уровня
+    public LogTail follow(LogSeverity severity, Consumer<? super String> consumer) throws IOException {
+        LogTail tail = follow(severity);
+        tail.consume(consumer);
+        return tail;
+    }
+
+    private void filterLogs(LogSeverity severity, long fromMillis, long toMillis) throws IOException {
+        for (String line : findLogs(severity, fromMillis, toMillis)) {
+            System.out.println(line);
+        }
+    }
+
+    // Строки заданного уровня с меткой времени в [fromMillis, toMillis] из всех сегментов
+    public synchronized List<String> findLogs(LogSeverity severity, long fromMillis, long toMillis) throws IOException {
+        List<Path> segments = SegmentedLogFile.listSegments(logFile);
+        if (segments.isEmpty()) {
+            throw new FileNotFoundException(logFile);
+        }
+        List<ForkJoinTask<List<String>>> tasks = new ArrayList<>();
+        for (Path segment : segments) {
+            tasks.add(pool.submit(() -> searchSegment(segment, severity, fromMillis, toMillis)));
+        }
+        // Сегменты следуют друг за другом по времени, поэтому слияние по меткам времени
+        // сводится к объединению результатов в порядке номеров сегментов
+        List<String> result = new ArrayList<>();
+        for (ForkJoinTask<List<String>> task : tasks) {
+            try {
+                result.addAll(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        indexes.keySet().retainAll(segments);
+        return result;
+    }
+
+    private List<String> searchSegment(Path segment, LogSeverity severity, long fromMillis, long toMillis) throws IOException {
+        try {
+            if (LogRecordCodec.isBinary(segment)) {
+                return searchBinary(segment, severity, fromMillis, toMillis);
+            }
+            Path indexFile = SegmentedLogFile.indexPathFor(segment);
+            if (SegmentedLogFile.isCompressed(segment)) {
+                LogIndex index = indexes.get(segment);
+                if (index == null) {
+                    // Сжатый сегмент не меняется: индекс из файла читается один раз
+                    index = LogIndex.load(indexFile, bucketMillis);
+                    if (index != null) {
+                        indexes.put(segment, index);
+                    }
+                }
+                return searchCompressed(segment, index, severity, fromMillis, toMillis);
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                LogIndex index = indexes.get(segment);
+                if (index == null) {
+                    index = LogIndex.open(indexFile, bucketMillis);
+                }
+                if (index.update(channel)) {
+                    index.save(indexFile);
+                }
+                indexes.put(segment, index);
+                return searchMapped(channel, index, severity, fromMillis, toMillis);
+            }
+        } catch (NoSuchFileException e) {
+            // Сегмент успели сжать после получения списка
+            Path compressed = Paths.get(segment + ".gz");
+            if (SegmentedLogFile.isCompressed(segment) || !Files.exists(compressed)) {
+                return Collections.emptyList();
+            }
+            return searchSegment(compressed, severity, fromMillis, toMillis);
+        }
+    }
+
+    private List<String> searchMapped(FileChannel channel, LogIndex index, LogSeverity severity,
+                                      long fromMillis, long toMillis) throws IOException {
+        List<String> result = new ArrayList<>();
+        long start = index.bucketStart(fromMillis);
+        long end = index.bucketEnd(toMillis);
+        // Точную проверку времени требуют только строки граничных интервалов
+        long innerStart = fromMillis == Long.MIN_VALUE ? start : index.bucketEnd(fromMillis);
+        long innerEnd = toMillis == Long.MAX_VALUE ? end : index.bucketStart(toMillis);
+        long indexed = index.getIndexedLength();
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        long windowEnd = 0;
+        for (long offset : index.offsets(severity, start, end)) {
+            // Окно переотображается, если строка может не поместиться в текущее
+            if (window == null || offset >= windowEnd || (windowEnd < indexed && windowEnd - offset < MAP_WINDOW / 2)) {
+                windowStart = offset;
+                windowEnd = Math.min(offset + MAP_WINDOW, indexed);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            }
+            String line = readLine(window, (int) (offset - windowStart));
+            if (inRange(line, offset, innerStart, innerEnd, fromMillis, toMillis)) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    // Сжатый сегмент распаковывается потоком; без индекса он строится по ходу чтения
+    private List<String> searchCompressed(Path segment, LogIndex index, LogSeverity severity,
+                                          long fromMillis, long toMillis) throws IOException {
+        List<String> result = new ArrayList<>();
+        long[] candidates = null;
+        long innerStart = 0;
+        long innerEnd = 0;
+        if (index != null) {
+            long start = index.bucketStart(fromMillis);
+            long end = index.bucketEnd(toMillis);
+            innerStart = fromMillis == Long.MIN_VALUE ? start : index.bucketEnd(fromMillis);
+            innerEnd = toMillis == Long.MAX_VALUE ? end : index.bucketStart(toMillis);
+            candidates = index.offsets(severity, start, end);
+            if (candidates.length == 0) {
+                return result; // Сегмент не распаковывается вовсе
+            }
+        }
+        LogIndex built = index == null ? new LogIndex(bucketMillis) : null;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(segment), 64 * 1024)) {
+            LogLineReader reader = new LogLineReader(in, charset);
+            int next = 0;
+            while (reader.next()) {
+                long offset = reader.offset();
+                if (built != null) {
+                    String line = reader.line();
+                    LogSeverity lineSeverity = LogIndex.parseLineSeverity(line);
+                    long timestamp = LogIndex.parseLineTimestamp(line);
+                    built.add(offset, timestamp, lineSeverity);
+                    if (lineSeverity == severity
+                            && (timestamp == Long.MIN_VALUE || (timestamp >= fromMillis && timestamp <= toMillis))) {
+                        result.add(line);
+                    }
+                } else if (offset == candidates[next]) {
+                    String line = reader.line();
+                    if (inRange(line, offset, innerStart, innerEnd, fromMillis, toMillis)) {
+                        result.add(line);
+                    }
+                    if (++next == candidates.length) {
+                        break;
+                    }
+                }
             }
+            if (built != null) {
+                built.setIndexedLength(reader.position());
+                built.save(SegmentedLogFile.indexPathFor(segment));
+                indexes.put(segment, built);
+            }
+        }
+        return result;
+    }
+
+    // Двоичные записи отбираются по заголовку, сообщение декодируется только у подходящих
+    private List<String> searchBinary(Path segment, LogSeverity severity, long fromMillis, long toMillis) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (LogRecordReader reader = new LogRecordReader(segment)) {
+            while (reader.next()) {
+                long timestamp = reader.getEpochMillis();
+                if (reader.getSeverity() == severity && timestamp >= fromMillis && timestamp <= toMillis) {
+                    result.add(reader.toText());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean inRange(String line, long offset, long innerStart, long innerEnd,
+                                   long fromMillis, long toMillis) {
+        if (offset >= innerStart && offset < innerEnd) {
+            return true;
+        }
+        long timestamp = LogIndex.parseLineTimestamp(line);
+        return timestamp == Long.MIN_VALUE || (timestamp >= fromMillis && timestamp <= toMillis);
+    }
+
+    private String readLine(MappedByteBuffer window, int from) {
+        int end = from;
+        while (end < window.limit() && window.get(end) != '\n') {
+            end++;
+        }
+        return LogIndex.decodeLine(window, from, end, charset);
+    }
+}
+
+// Слежение за концом лога: читаются только дописанные байты, подходящие строки передаются
+// подписчикам с обратным давлением. После ротации старый файл дочитывается до конца
+class LogTail implements Flow.Publisher<String>, AutoCloseable {
+    private static final long POLL_MILLIS = 5;
+
+    private final Path file;
+    private final LogSeverity severity;
+    private final Charset charset = Charset.defaultCharset();
+    private final SubmissionPublisher<String> publisher;
+    private final WatchService watchService;
+    private final Thread readerThread;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running = true;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private Object fileKey;
+    private long position;
+    private Boolean binary;
+
+    public LogTail(String logFile, LogSeverity severity, int bufferCapacity) throws IOException {
+        this.file = Paths.get(logFile).toAbsolutePath();
+        this.severity = severity;
+        this.publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), bufferCapacity);
+        this.watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        openFile(true);
+        this.readerThread = new Thread(this::readLoop, "log-tail");
+        readerThread.setDaemon(true);
+    }
+
+    // Чтение начинается с первой подпиской, чтобы не терять строки до нее
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        publisher.subscribe(subscriber);
+        if (started.compareAndSet(false, true)) {
+            readerThread.start();
+        }
+    }
+
+    // Вызов consumer для каждой новой строки
+    public CompletableFuture<Void> consume(Consumer<? super String> consumer) {
+        CompletableFuture<Void> done = publisher.consume(consumer);
+        if (started.compareAndSet(false, true)) {
+            readerThread.start();
+        }
+        return done;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (started.get()) {
+            try {
+                readerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        publisher.close();
+        closeFile();
+    }
+
+    private void readLoop() {
+        try {
+            while (running) {
+                if (channel == null) {
+                    openFile(false);
+                }
+                if (channel != null && readAppended()) {
+                    continue;
+                }
+                if (channel != null && rotated()) {
+                    while (readAppended()) {
+                        // Дочитывание переименованного файла
+                    }
+                    closeFile();
+                    continue;
+                }
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Слежение остановлено
+        } catch (IOException e) {
+            publisher.closeExceptionally(e);
+        }
+    }
+
+    // Открытие файла; новый файл после ротации читается с начала
+    private void openFile(boolean fromEnd) throws IOException {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            channel = null; // Новый файл еще не создан
+            return;
+        }
+        fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        position = fromEnd ? channel.size() : 0;
+        binary = null;
+        pending.clear();
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    // Файл по пути заменен другим (ротация переименованием)
+    private boolean rotated() throws IOException {
+        try {
+            Object currentKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            return currentKey != null && !currentKey.equals(fileKey);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+    }
+
+    // Чтение дописанных байтов; false, если новых данных нет
+    private boolean readAppended() throws IOException {
+        long size = channel.size();
+        if (size < position) {
+            position = 0; // Файл усечен на месте
+            binary = null;
+            pending.clear();
+        }
+        if (binary == null) {
+            if (size < Integer.BYTES) {
+                return false;
+            }
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+                // Чтение заголовка файла
+            }
+            binary = magic.getInt(0) == LogRecordCodec.FILE_MAGIC;
+            if (binary && position == 0) {
+                position = Integer.BYTES;
+            }
+        }
+        if (size == position) {
+            return false;
+        }
+        if (!pending.hasRemaining()) {
+            pending = ByteBuffer.allocate(pending.capacity() * 2).put(pending.flip());
+        }
+        int read = channel.read(pending, position);
+        if (read <= 0) {
+            return false;
+        }
+        position += read;
+        pending.flip();
+        if (binary) {
+            publishRecords();
+        } else {
+            publishLines();
+        }
+        pending.compact();
+        return true;
+    }
+
+    private void publishLines() {
+        for (int i = pending.position(); i < pending.limit(); i++) {
+            if (pending.get(i) == '\n') {
+                String line = LogIndex.decodeLine(pending, pending.position(), i, charset);
+                pending.position(i + 1);
+                if (LogIndex.parseLineSeverity(line) == severity) {
+                    publisher.submit(line);
+                }
+            }
+        }
+    }
+
+    private void publishRecords() {
+        while (pending.remaining() >= LogRecordCodec.HEADER_SIZE) {
+            int start = pending.position();
+            int length = pending.getInt(start + Long.BYTES + Byte.BYTES);
+            if (pending.remaining() < LogRecordCodec.HEADER_SIZE + length) {
+                break; // Запись дописана не полностью
+            }
+            LogSeverity recordSeverity = LogSeverity.values()[pending.get(start + Long.BYTES) & 0xFF];
+            if (recordSeverity == severity) {
+                byte[] message = new byte[length];
+                pending.get(start + LogRecordCodec.HEADER_SIZE, message);
+                publisher.submit(LogRecordCodec.formatText(pending.getLong(start), recordSeverity,
+                        new String(message, StandardCharsets.UTF_8)));
+            }
+            pending.position(start + LogRecordCodec.HEADER_SIZE + length);
         }
-        reader.close();
     }
 }
 
@@ -387,8 +2009,22 @@ public class Main {
         // Логирование
         LogSystem logSystem = LogSystem.getInstance();
         try {
+            logSystem.enableAsync(1024, 64, 200, OverflowPolicy.BLOCK);
             logSystem.writeLog("Система запущена", LogSeverity.LOW);
             logSystem.writeLog("Важное событие", LogSeverity.HIGH);
+            if (logSystem.isEnabled(LogSeverity.MEDIUM)) {
+                logSystem.writeLog("Отчет: " + new Date(), LogSeverity.MEDIUM);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            logSystem.shutdown();
+        }
+
+        // Выборка важных событий по индексу
+        LogFilter logFilter = new LogFilter("log_output.txt");
+        try {
+            logFilter.filterLogs(LogSeverity.HIGH);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,29 +1,518 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Строка отчета: значения столбцов по номерам схемы
+interface ReportRow {
+    Object value(int column);
+
+    // Дата строки, по которой фильтрует DateFilterDecorator
+    LocalDate getDate();
+}
+
+// Двоичная запись строк отчета, например для временных файлов сортировки
+interface RowCodec {
+    void write(DataOutputStream out, ReportRow row) throws IOException;
+
+    // Чтение следующей строки; EOFException в конце данных
+    ReportRow read(DataInputStream in) throws IOException;
+
+    // Примерный размер строки в куче для бюджета памяти
+    long estimateBytes(ReportRow row);
+}
+
+// Строка отчета по продажам
+class SaleRow implements ReportRow {
+    static final RowCodec CODEC = new RowCodec() {
+        @Override
+        public void write(DataOutputStream out, ReportRow row) throws IOException {
+            SaleRow sale = (SaleRow) row;
+            out.writeLong(sale.date.toEpochDay());
+            out.writeDouble(sale.amount);
+            out.writeUTF(sale.customer);
+        }
+
+        @Override
+        public ReportRow read(DataInputStream in) throws IOException {
+            return new SaleRow(LocalDate.ofEpochDay(in.readLong()), in.readDouble(), in.readUTF());
+        }
+
+        @Override
+        public long estimateBytes(ReportRow row) {
+            return 120 + 2L * ((SaleRow) row).customer.length(); // Строка, дата, имя и ссылка в списке
+        }
+    };
+
+    private final LocalDate date;
+    private final double amount;
+    private final String customer;
+
+    public SaleRow(LocalDate date, double amount, String customer) {
+        this.date = date;
+        this.amount = amount;
+        this.customer = customer;
+    }
+
+    // Разбор строки CSV вида "дата,сумма,покупатель"
+    public static SaleRow parse(String line) {
+        String[] parts = line.split(",", 3);
+        return new SaleRow(LocalDate.parse(parts[0].trim()), Double.parseDouble(parts[1].trim()), parts[2].trim());
+    }
+
+    @Override
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getCustomer() {
+        return customer;
+    }
+
+    @Override
+    public Object value(int column) {
+        switch (column) {
+            case 0:
+                return date;
+            case 1:
+                return amount;
+            case 2:
+                return customer;
+            default:
+                throw new IndexOutOfBoundsException("Нет столбца " + column);
+        }
+    }
+}
+
+// Строка отчета по пользователям
+class UserRow implements ReportRow {
+    static final RowCodec CODEC = new RowCodec() {
+        @Override
+        public void write(DataOutputStream out, ReportRow row) throws IOException {
+            UserRow user = (UserRow) row;
+            out.writeUTF(user.name);
+            out.writeLong(user.registrationDate.toEpochDay());
+            out.writeInt(user.purchases);
+        }
+
+        @Override
+        public ReportRow read(DataInputStream in) throws IOException {
+            return new UserRow(in.readUTF(), LocalDate.ofEpochDay(in.readLong()), in.readInt());
+        }
+
+        @Override
+        public long estimateBytes(ReportRow row) {
+            return 120 + 2L * ((UserRow) row).name.length();
+        }
+    };
+
+    private final String name;
+    private final LocalDate registrationDate;
+    private final int purchases;
+
+    public UserRow(String name, LocalDate registrationDate, int purchases) {
+        this.name = name;
+        this.registrationDate = registrationDate;
+        this.purchases = purchases;
+    }
+
+    // Разбор строки CSV вида "имя,дата регистрации,покупки"
+    public static UserRow parse(String line) {
+        String[] parts = line.split(",", 3);
+        return new UserRow(parts[0].trim(), LocalDate.parse(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LocalDate getRegistrationDate() {
+        return registrationDate;
+    }
+
+    public int getPurchases() {
+        return purchases;
+    }
+
+    @Override
+    public LocalDate getDate() {
+        return registrationDate;
+    }
+
+    @Override
+    public Object value(int column) {
+        switch (column) {
+            case 0:
+                return name;
+            case 1:
+                return registrationDate;
+            case 2:
+                return purchases;
+            default:
+                throw new IndexOutOfBoundsException("Нет столбца " + column);
+        }
+    }
+}
+
+// Название отчета, его столбцы и двоичная запись строк
+class ReportSchema {
+    private final String title;
+    private final RowCodec codec;
+    private final List<String> columns;
+
+    public ReportSchema(String title, RowCodec codec, String... columns) {
+        this.title = title;
+        this.codec = codec;
+        this.columns = List.of(columns);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public RowCodec getCodec() {
+        return codec;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public int columnIndex(String column) {
+        int index = columns.indexOf(column);
+        if (index < 0) {
+            throw new IllegalArgumentException("В отчете " + title + " нет столбца: " + column);
+        }
+        return index;
+    }
+
+    // Сравнение строк по значению столбца
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Comparator<ReportRow> comparator(String column) {
+        int index = columnIndex(column);
+        return (left, right) -> ((Comparable) left.value(index)).compareTo(right.value(index));
+    }
+
+    // Значение для вывода: суммы с двумя знаками после запятой
+    public static String format(Object value) {
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.2f", (Double) value);
+        }
+        return String.valueOf(value);
+    }
+}
 
 // Интерфейс IReport
 interface IReport {
-    String generate();
+    ReportSchema schema();
+
+    // Ленивый поток строк; поток нужно закрыть, если он читает файл
+    Stream<ReportRow> rows();
+
+    // Текстовый вид: заголовок и строки отчета
+    default String generate() {
+        ReportSchema schema = schema();
+        StringBuilder text = new StringBuilder(schema.getTitle()).append(": ").append(schema.getColumns());
+        try (Stream<ReportRow> rows = rows()) {
+            rows.forEach(row -> {
+                text.append(System.lineSeparator());
+                for (int i = 0; i < schema.getColumns().size(); i++) {
+                    text.append(i == 0 ? "" : ", ").append(ReportSchema.format(row.value(i)));
+                }
+            });
+        }
+        return text.toString();
+    }
+}
+
+// Отчет-источник, который сам отбирает строки по диапазону дат; планировщик
+// передает ему фильтры по датам, чтобы не пропускать лишние строки через конвейер
+interface DateRangeReport extends IReport {
+    // Строки с датой в [start, end]
+    Stream<ReportRow> rows(LocalDate start, LocalDate end);
+
+    // Как источник отбирает диапазон, для ReportPlan.explain
+    default String explainRange(LocalDate start, LocalDate end) {
+        return "filtered while scanning";
+    }
+
+    // Столбец, по которому строки источника уже устойчиво упорядочены; null - порядка нет
+    default String getSortedBy() {
+        return null;
+    }
+}
+
+// Источник, строки которого делятся на части для параллельной обработки.
+// Части по порядку дают те же строки, что и rows(start, end)
+interface PartitionedReport extends IReport {
+    // Части примерно по partitionRows строк с датой в [start, end]; start == null - все строки
+    List<Supplier<Stream<ReportRow>>> partitions(int partitionRows, LocalDate start, LocalDate end);
+
+    static Stream<ReportRow> inRange(Stream<ReportRow> rows, LocalDate start, LocalDate end) {
+        if (start == null) {
+            return rows;
+        }
+        return rows.filter(row -> !row.getDate().isBefore(start) && !row.getDate().isAfter(end));
+    }
+
+    // Деление списка строк на части подряд идущими отрезками
+    static List<Supplier<Stream<ReportRow>>> slices(List<? extends ReportRow> rows, int partitionRows,
+                                                   LocalDate start, LocalDate end) {
+        List<Supplier<Stream<ReportRow>>> partitions = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += partitionRows) {
+            List<? extends ReportRow> slice = rows.subList(from, Math.min(rows.size(), from + partitionRows));
+            partitions.add(() -> inRange(slice.stream().map(row -> (ReportRow) row), start, end));
+        }
+        return partitions;
+    }
+}
+
+// Источник, результаты которого можно кэшировать: ключ данных общий для всех отчетов
+// над одними данными, версия меняется при изменении данных
+interface CacheableReport extends IReport {
+    String getDataKey();
+
+    long getDataVersion();
+}
+
+// Версия данных файла: время изменения и размер
+final class DataVersions {
+    private DataVersions() {
+    }
+
+    static long of(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() * 31 + Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
 
 // Классы отчетов
-class SalesReport implements IReport {
+class SalesReport implements DateRangeReport, CacheableReport, PartitionedReport {
+    static final ReportSchema SCHEMA = new ReportSchema("Sales Report", SaleRow.CODEC, "date", "sale amount", "customer");
+
+    private final List<SaleRow> sales;
+    private final Path salesFile;
+    private final SalesStore store;
+
+    // Отчет по встроенным примерам продаж
+    public SalesReport() {
+        sales = List.of(
+                new SaleRow(LocalDate.parse("2022-11-03"), 420.00, "Olga Smirnova"),
+                new SaleRow(LocalDate.parse("2023-02-14"), 1250.50, "Ivan Petrov"),
+                new SaleRow(LocalDate.parse("2023-05-30"), 310.75, "Anna Ivanova"),
+                new SaleRow(LocalDate.parse("2023-03-08"), 980.00, "Sergey Volkov"),
+                new SaleRow(LocalDate.parse("2023-12-01"), 75.20, "Ivan Petrov"),
+                new SaleRow(LocalDate.parse("2024-01-15"), 660.00, "Anna Ivanova"));
+        salesFile = null;
+        store = null;
+    }
+
+    // Отчет по файлу CSV "дата,сумма,покупатель"; файл читается построчно при обходе
+    public SalesReport(Path salesFile) {
+        this.sales = null;
+        this.salesFile = salesFile;
+        this.store = null;
+    }
+
+    // Отчет по хранилищу с индексом дат: строки упорядочены по дате, фильтр читает только
+    // блоки своего диапазона
+    public SalesReport(SalesStore store) {
+        this.sales = null;
+        this.salesFile = null;
+        this.store = store;
+    }
+
+    public SalesStore getStore() {
+        return store;
+    }
+
     @Override
-    public String generate() {
-        return "Sales Report: [date, sale amount, customer]";
+    public ReportSchema schema() {
+        return SCHEMA;
+    }
+
+    @Override
+    public Stream<ReportRow> rows() {
+        if (store != null) {
+            return store.rows();
+        }
+        if (salesFile == null) {
+            return sales.stream().map(sale -> sale);
+        }
+        try {
+            return Files.lines(salesFile).filter(line -> !line.isBlank()).map(SaleRow::parse);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Stream<ReportRow> rows(LocalDate start, LocalDate end) {
+        if (store != null) {
+            return store.rows(start, end);
+        }
+        return rows().filter(row -> !row.getDate().isBefore(start) && !row.getDate().isAfter(end));
+    }
+
+    @Override
+    public String explainRange(LocalDate start, LocalDate end) {
+        if (store == null) {
+            return DateRangeReport.super.explainRange(start, end);
+        }
+        int blocks = Math.max(0, store.endBlock(end) - store.firstBlock(start));
+        return "index seek reads " + blocks + " of " + store.blockCount() + " blocks";
+    }
+
+    @Override
+    public String getSortedBy() {
+        return store != null ? "date" : null;
+    }
+
+    @Override
+    public List<Supplier<Stream<ReportRow>>> partitions(int partitionRows, LocalDate start, LocalDate end) {
+        if (store != null) {
+            return store.partitions(partitionRows, start, end);
+        }
+        if (salesFile != null) {
+            return CsvPartitions.partitions(salesFile, partitionRows, SaleRow::parse, start, end);
+        }
+        return PartitionedReport.slices(sales, partitionRows, start, end);
+    }
+
+    @Override
+    public String getDataKey() {
+        if (store != null) {
+            return "sales:store:" + store.getFile().toAbsolutePath();
+        }
+        return salesFile != null ? "sales:file:" + salesFile.toAbsolutePath() : "sales:builtin";
+    }
+
+    @Override
+    public long getDataVersion() {
+        if (store != null) {
+            return DataVersions.of(store.getFile());
+        }
+        return salesFile != null ? DataVersions.of(salesFile) : 0;
     }
 }
 
-class UserReport implements IReport {
+class UserReport implements DateRangeReport, CacheableReport, PartitionedReport {
+    static final ReportSchema SCHEMA = new ReportSchema("User Report", UserRow.CODEC, "user name", "registration date", "purchases");
+
+    private final List<UserRow> users;
+    private final Path usersFile;
+
+    // Отчет по встроенным примерам пользователей
+    public UserReport() {
+        users = List.of(
+                new UserRow("ivan", LocalDate.parse("2021-06-10"), 12),
+                new UserRow("anna", LocalDate.parse("2020-01-22"), 31),
+                new UserRow("olga", LocalDate.parse("2023-09-05"), 2),
+                new UserRow("sergey", LocalDate.parse("2022-03-17"), 7));
+        usersFile = null;
+    }
+
+    // Отчет по файлу CSV "имя,дата регистрации,покупки"
+    public UserReport(Path usersFile) {
+        this.users = null;
+        this.usersFile = usersFile;
+    }
+
     @Override
-    public String generate() {
-        return "User Report: [user name, registration date, purchases]";
+    public ReportSchema schema() {
+        return SCHEMA;
+    }
+
+    @Override
+    public Stream<ReportRow> rows() {
+        if (usersFile == null) {
+            return users.stream().map(user -> user);
+        }
+        try {
+            return Files.lines(usersFile).filter(line -> !line.isBlank()).map(UserRow::parse);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Stream<ReportRow> rows(LocalDate start, LocalDate end) {
+        return rows().filter(row -> !row.getDate().isBefore(start) && !row.getDate().isAfter(end));
+    }
+
+    @Override
+    public List<Supplier<Stream<ReportRow>>> partitions(int partitionRows, LocalDate start, LocalDate end) {
+        if (usersFile != null) {
+            return CsvPartitions.partitions(usersFile, partitionRows, UserRow::parse, start, end);
+        }
+        return PartitionedReport.slices(users, partitionRows, start, end);
+    }
+
+    @Override
+    public String getDataKey() {
+        return usersFile != null ? "users:file:" + usersFile.toAbsolutePath() : "users:builtin";
+    }
+
+    @Override
+    public long getDataVersion() {
+        return usersFile != null ? DataVersions.of(usersFile) : 0;
     }
 }
 
-// Абстрактный декоратор отчета
+// Абстрактный декоратор отчета: этап конвейера над строками вложенного отчета
 abstract class ReportDecorator implements IReport {
     protected IReport report;
 
@@ -31,41 +520,530 @@ abstract class ReportDecorator implements IReport {
         this.report = report;
     }
 
+    public IReport getReport() {
+        return report;
+    }
+
     @Override
-    public String generate() {
-        return report.generate();
+    public ReportSchema schema() {
+        return report.schema();
+    }
+
+    @Override
+    public Stream<ReportRow> rows() {
+        return report.rows();
     }
 }
 
-// Декоратор фильтрации по датам
+// Декоратор фильтрации по датам: пропускает строки с датой в [startDate, endDate]
 class DateFilterDecorator extends ReportDecorator {
-    private String startDate;
-    private String endDate;
+    private final LocalDate start;
+    private final LocalDate end;
 
     public DateFilterDecorator(IReport report, String startDate, String endDate) {
         super(report);
-        this.startDate = startDate;
-        this.endDate = endDate;
+        this.start = LocalDate.parse(startDate);
+        this.end = LocalDate.parse(endDate);
     }
 
+    public LocalDate getStart() {
+        return start;
+    }
+
+    public LocalDate getEnd() {
+        return end;
+    }
+
+    public boolean matches(ReportRow row) {
+        LocalDate date = row.getDate();
+        return !date.isBefore(start) && !date.isAfter(end);
+    }
+
+    // Источник с индексом дат сам находит нужный диапазон
     @Override
-    public String generate() {
-        return super.generate() + " | Filtered by date: " + startDate + " to " + endDate;
+    public Stream<ReportRow> rows() {
+        if (report instanceof DateRangeReport) {
+            return ((DateRangeReport) report).rows(start, end);
+        }
+        return super.rows().filter(this::matches);
     }
 }
 
-// Декоратор сортировки данных
+// Декоратор сортировки данных по столбцу sortBy; строки с равным ключом сохраняют порядок.
+// Данные больше бюджета памяти сортируются внешней сортировкой через временные файлы
 class SortingDecorator extends ReportDecorator {
+    static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
     private String sortBy;
+    private final long memoryBudgetBytes;
+    private final int parallelism;
 
     public SortingDecorator(IReport report, String sortBy) {
+        this(report, sortBy, DEFAULT_MEMORY_BUDGET, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SortingDecorator(IReport report, String sortBy, long memoryBudgetBytes, int parallelism) {
         super(report);
         this.sortBy = sortBy;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.parallelism = parallelism;
+        report.schema().columnIndex(sortBy); // Проверка столбца при построении цепочки
+    }
+
+    public String getSortBy() {
+        return sortBy;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    public int getParallelism() {
+        return parallelism;
     }
 
     @Override
-    public String generate() {
-        return super.generate() + " | Sorted by: " + sortBy;
+    public Stream<ReportRow> rows() {
+        ExternalSorter sorter = new ExternalSorter(schema().comparator(sortBy), schema().getCodec(),
+                memoryBudgetBytes, parallelism, ForkJoinPool.commonPool());
+        return sorter.sort(super.rows());
+    }
+}
+
+// Внешняя сортировка строк: пока строки помещаются в бюджет памяти, они сортируются
+// в памяти; иначе части входа сортируются параллельно и сбрасываются во временные файлы,
+// а затем сливаются через кучу. Строки с равным ключом сохраняют входной порядок
+class ExternalSorter {
+    private static final int MAX_MERGE_WIDTH = 128; // Открытых файлов при одном слиянии
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Comparator<ReportRow> comparator;
+    private final RowCodec codec;
+    private final long runBudgetBytes;
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    public ExternalSorter(Comparator<ReportRow> comparator, RowCodec codec, long memoryBudgetBytes,
+                          int parallelism, ForkJoinPool pool) {
+        if (memoryBudgetBytes <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Бюджет памяти и число потоков должны быть положительными");
+        }
+        this.comparator = comparator;
+        this.codec = codec;
+        this.parallelism = parallelism;
+        this.runBudgetBytes = Math.max(1, memoryBudgetBytes / parallelism); // Бюджет делится между сортируемыми частями
+        this.pool = pool;
+    }
+
+    public Stream<ReportRow> sort(Stream<ReportRow> input) {
+        List<Path> runs = new ArrayList<>();
+        Deque<ForkJoinTask<Path>> pending = new ArrayDeque<>();
+        try (input) {
+            Iterator<ReportRow> iterator = input.iterator();
+            List<ReportRow> chunk = readChunk(iterator);
+            if (!iterator.hasNext()) {
+                chunk.sort(comparator);
+                return chunk.stream();
+            }
+            // Части сортируются и записываются параллельно; в памяти не больше parallelism частей
+            while (!chunk.isEmpty()) {
+                List<ReportRow> rows = chunk;
+                pending.add(pool.submit(() -> writeRun(sorted(rows))));
+                if (pending.size() >= parallelism) {
+                    runs.add(pending.poll().join());
+                }
+                chunk = readChunk(iterator);
+            }
+            while (!pending.isEmpty()) {
+                runs.add(pending.poll().join());
+            }
+            return merged(runs);
+        } catch (IOException e) {
+            discard(runs, pending);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            discard(runs, pending);
+            throw e;
+        }
+    }
+
+    // Сортировка строк, заданных упорядоченными частями: части читаются и сортируются на пуле,
+    // не больше parallelism частей сразу, каждая в пределах своей доли бюджета. Файлы частей
+    // идут в порядке частей, поэтому при равных ключах порядок тот же, что у sort(Stream)
+    public Stream<ReportRow> sortPartitions(List<Supplier<Stream<ReportRow>>> partitions) {
+        List<Path> runs = new ArrayList<>();
+        Deque<ForkJoinTask<List<Path>>> pending = new ArrayDeque<>();
+        try {
+            for (Supplier<Stream<ReportRow>> partition : partitions) {
+                pending.add(pool.submit(() -> writeRuns(partition)));
+                if (pending.size() >= parallelism) {
+                    runs.addAll(pending.poll().join());
+                }
+            }
+            while (!pending.isEmpty()) {
+                runs.addAll(pending.poll().join());
+            }
+            return merged(runs);
+        } catch (IOException e) {
+            discardPartitions(runs, pending);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            discardPartitions(runs, pending);
+            throw e;
+        }
+    }
+
+    // Отсортированные файлы одной части, по порядку ее строк
+    private List<Path> writeRuns(Supplier<Stream<ReportRow>> partition) throws IOException {
+        List<Path> written = new ArrayList<>();
+        try (Stream<ReportRow> rows = partition.get()) {
+            Iterator<ReportRow> iterator = rows.iterator();
+            List<ReportRow> chunk = readChunk(iterator);
+            while (!chunk.isEmpty()) {
+                written.add(writeRun(sorted(chunk)));
+                chunk = readChunk(iterator);
+            }
+            return written;
+        } catch (IOException | RuntimeException e) {
+            deleteAll(written);
+            throw e;
+        }
+    }
+
+    private Stream<ReportRow> merged(List<Path> runs) throws IOException {
+        while (runs.size() > MAX_MERGE_WIDTH) {
+            runs = mergePass(runs);
+        }
+        RunMerger merger = new RunMerger(runs, codec, comparator);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merger, Spliterator.ORDERED), false)
+                .onClose(merger::close);
+    }
+
+    private static void discardPartitions(List<Path> runs, Deque<ForkJoinTask<List<Path>>> pending) {
+        for (ForkJoinTask<List<Path>> task : pending) {
+            try {
+                runs.addAll(task.join());
+            } catch (RuntimeException e) {
+                // Часть не записана, удалять нечего
+            }
+        }
+        deleteAll(runs);
+    }
+
+    // Удаление уже записанных частей, в том числе тех, что еще дописываются
+    private static void discard(List<Path> runs, Deque<ForkJoinTask<Path>> pending) {
+        for (ForkJoinTask<Path> task : pending) {
+            try {
+                runs.add(task.join());
+            } catch (RuntimeException e) {
+                // Часть не записана, удалять нечего
+            }
+        }
+        deleteAll(runs);
+    }
+
+    // Строки до исчерпания бюджета одной части
+    private List<ReportRow> readChunk(Iterator<ReportRow> iterator) {
+        List<ReportRow> chunk = new ArrayList<>();
+        long bytes = 0;
+        while (bytes < runBudgetBytes && iterator.hasNext()) {
+            ReportRow row = iterator.next();
+            bytes += codec.estimateBytes(row);
+            chunk.add(row);
+        }
+        return chunk;
+    }
+
+    private List<ReportRow> sorted(List<ReportRow> rows) {
+        rows.sort(comparator); // Сортировка слиянием устойчива
+        return rows;
+    }
+
+    private Path writeRun(List<ReportRow> rows) throws IOException {
+        Path run = Files.createTempFile("report-sort", ".run");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+            for (ReportRow row : rows) {
+                codec.write(out, row);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        return run;
+    }
+
+    // Слияние соседних групп частей; порядок групп сохраняется ради устойчивости
+    private List<Path> mergePass(List<Path> runs) throws IOException {
+        List<Path> merged = new ArrayList<>();
+        for (int from = 0; from < runs.size(); from += MAX_MERGE_WIDTH) {
+            List<Path> group = new ArrayList<>(runs.subList(from, Math.min(runs.size(), from + MAX_MERGE_WIDTH)));
+            RunMerger merger = new RunMerger(group, codec, comparator);
+            try {
+                Path run = Files.createTempFile("report-sort", ".run");
+                merged.add(run);
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+                    while (merger.hasNext()) {
+                        codec.write(out, merger.next());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                deleteAll(merged);
+                deleteAll(runs.subList(from + group.size(), runs.size()));
+                throw e;
+            } finally {
+                merger.close();
+            }
+        }
+        return merged;
+    }
+
+    static void deleteAll(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+// Слияние отсортированных частей через кучу. При равных ключах выигрывает часть
+// с меньшим номером, то есть более ранняя во входе. Закрытие удаляет файлы частей
+class RunMerger implements Iterator<ReportRow> {
+    private final List<Path> runs;
+    private final RowCodec codec;
+    private final DataInputStream[] inputs;
+    private final ReportRow[] heads;
+    private final PriorityQueue<Integer> heap;
+
+    public RunMerger(List<Path> runs, RowCodec codec, Comparator<ReportRow> comparator) throws IOException {
+        this.runs = runs;
+        this.codec = codec;
+        inputs = new DataInputStream[runs.size()];
+        heads = new ReportRow[runs.size()];
+        heap = new PriorityQueue<>(Math.max(1, runs.size()), (left, right) -> {
+            int order = comparator.compare(heads[left], heads[right]);
+            return order != 0 ? order : Integer.compare(left, right);
+        });
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                inputs[i] = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(i)), 1 << 16));
+                advance(i);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void advance(int run) throws IOException {
+        try {
+            heads[run] = codec.read(inputs[run]);
+            heap.add(run);
+        } catch (EOFException e) {
+            heads[run] = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public ReportRow next() {
+        Integer run = heap.poll();
+        if (run == null) {
+            throw new NoSuchElementException();
+        }
+        ReportRow row = heads[run];
+        try {
+            advance(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return row;
+    }
+
+    public void close() {
+        for (DataInputStream input : inputs) {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        heap.clear();
+        ExternalSorter.deleteAll(runs);
+    }
+}
+
+// Запись в канал через прямой буфер из общего пула: значения кодируются прямо в буфер
+// без промежуточных строк и массивов, буфер сбрасывается в канал по заполнении.
+// Канал не закрывается: им владеет вызывающий код
+class ChannelSink implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_POOLED = 16;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private long written;
+
+    public ChannelSink(WritableByteChannel channel) {
+        this.channel = channel;
+        ByteBuffer pooled = POOL.poll();
+        buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.clear();
+    }
+
+    // Число байт, записанных с момента создания
+    public long position() {
+        return written + buffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public ChannelSink put(char ascii) throws IOException {
+        ensure(1);
+        buffer.put((byte) ascii);
+        return this;
+    }
+
+    public ChannelSink putAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            put(text.charAt(i));
+        }
+        return this;
+    }
+
+    // Кодирование в UTF-8; одиночные суррогаты заменяются на '?'
+    public ChannelSink putUtf8(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            ensure(4);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    public ChannelSink putLong(long value) throws IOException {
+        if (value < 0) {
+            put('-');
+            if (value == Long.MIN_VALUE) {
+                return putAscii("9223372036854775808");
+            }
+            value = -value;
+        }
+        ensure(19);
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+        return this;
+    }
+
+    private void putDigits(int value, int width) throws IOException {
+        ensure(width);
+        for (int divisor = (int) Math.pow(10, width - 1); divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    // Сумма с двумя знаками после точки, как ReportSchema.format
+    public ChannelSink putAmount(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e15) {
+            return putAscii(ReportSchema.format(value));
+        }
+        long cents = Math.round(Math.abs(value) * 100);
+        if (value < 0 && cents != 0) {
+            put('-');
+        }
+        putLong(cents / 100);
+        put('.');
+        putDigits((int) (cents % 100), 2);
+        return this;
+    }
+
+    // Дата в виде ГГГГ-ММ-ДД
+    public ChannelSink putDate(LocalDate date) throws IOException {
+        if (date.getYear() < 0 || date.getYear() > 9999) {
+            return putAscii(date.toString());
+        }
+        putDigits(date.getYear(), 4);
+        put('-');
+        putDigits(date.getMonthValue(), 2);
+        put('-');
+        putDigits(date.getDayOfMonth(), 2);
+        return this;
+    }
+
+    // Значение столбца: числа и даты без промежуточных строк
+    public ChannelSink putValue(Object value) throws IOException {
+        if (value instanceof Double) {
+            return putAmount((Double) value);
+        } else if (value instanceof LocalDate) {
+            return putDate((LocalDate) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            return putLong(((Number) value).longValue());
+        }
+        return putUtf8(String.valueOf(value));
+    }
+
+    // Сброс оставшихся байт и возврат буфера в пул
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            if (POOL.size() < MAX_POOLED) {
+                POOL.offer(buffer);
+            }
+            buffer = null;
+        }
     }
 }
 
@@ -75,21 +1053,1217 @@ class CsvExportDecorator extends ReportDecorator {
         super(report);
     }
 
+    // Построчная запись в канал: заголовок из столбцов, затем строки отчета.
+    // Память не зависит от размера отчета, первые байты уходят после заполнения буфера
+    public void export(WritableByteChannel channel) throws IOException {
+        write(schema(), rows(), channel);
+    }
+
+    // Запись готового потока строк, например из оптимизированного плана; поток закрывается
+    static void write(ReportSchema schema, Stream<ReportRow> source, WritableByteChannel channel) throws IOException {
+        int columns = schema.getColumns().size();
+        try (ChannelSink sink = new ChannelSink(channel); Stream<ReportRow> rows = source) {
+            for (int i = 0; i < columns; i++) {
+                if (i > 0) {
+                    sink.put(',');
+                }
+                putText(sink, schema.getColumns().get(i));
+            }
+            Iterator<ReportRow> iterator = rows.iterator();
+            while (iterator.hasNext()) {
+                ReportRow row = iterator.next();
+                sink.put('\n');
+                for (int i = 0; i < columns; i++) {
+                    if (i > 0) {
+                        sink.put(',');
+                    }
+                    Object value = row.value(i);
+                    if (value instanceof String) {
+                        putText(sink, (String) value);
+                    } else {
+                        sink.putValue(value);
+                    }
+                }
+            }
+            sink.put('\n');
+        }
+    }
+
+    public void export(OutputStream out) throws IOException {
+        export(Channels.newChannel(out));
+        out.flush();
+    }
+
+    // Значения с запятыми, кавычками и переводами строк берутся в кавычки
+    private static void putText(ChannelSink sink, String value) throws IOException {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            sink.putUtf8(value);
+        } else {
+            sink.put('"').putUtf8(value.replace("\"", "\"\"")).put('"');
+        }
+    }
+
     @Override
     public String generate() {
-        return super.generate() + " | Exported as CSV";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            export(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
     }
 }
 
-// Декоратор экспорта в PDF
+// Декоратор экспорта в PDF. Документ пишется одним проходом: каждая страница уходит
+// в канал, как только заполнена, длина ее содержимого - отдельным объектом после него,
+// а дерево страниц и таблица ссылок - в конце. В памяти остаются только смещения объектов
 class PdfExportDecorator extends ReportDecorator {
+    static final int ROWS_PER_PAGE = 50;
+    private static final int PAGE_WIDTH = 595; // A4 в пунктах
+    private static final int PAGE_HEIGHT = 842;
+    private static final int MARGIN = 50;
+    private static final int LEADING = 14;
+    private static final int COLUMN_WIDTH = 165;
+    // Объекты 1 - каталог, 2 - дерево страниц, 3 - шрифт; далее по три на страницу
+    private static final int FIRST_PAGE_OBJECT = 4;
+
     public PdfExportDecorator(IReport report) {
         super(report);
     }
 
+    public void export(WritableByteChannel channel) throws IOException {
+        write(schema(), rows(), channel);
+    }
+
+    static void write(ReportSchema schema, Stream<ReportRow> source, WritableByteChannel channel) throws IOException {
+        int columns = schema.getColumns().size();
+        long[] offsets = new long[16];
+        int page = 0;
+        try (ChannelSink sink = new ChannelSink(channel); Stream<ReportRow> rows = source) {
+            sink.putAscii("%PDF-1.4\n");
+            offsets = record(offsets, 3, sink.position());
+            sink.putAscii("3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>\nendobj\n");
+            Iterator<ReportRow> iterator = rows.iterator();
+            do {
+                page++;
+                int pageObject = FIRST_PAGE_OBJECT + (page - 1) * 3;
+                offsets = record(offsets, pageObject, sink.position());
+                sink.putLong(pageObject).putAscii(" 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ")
+                        .putLong(PAGE_WIDTH).put(' ').putLong(PAGE_HEIGHT)
+                        .putAscii("] /Resources << /Font << /F1 3 0 R >> >> /Contents ")
+                        .putLong(pageObject + 1).putAscii(" 0 R >>\nendobj\n");
+                offsets = record(offsets, pageObject + 1, sink.position());
+                sink.putLong(pageObject + 1).putAscii(" 0 obj\n<< /Length ").putLong(pageObject + 2)
+                        .putAscii(" 0 R >>\nstream\n");
+                long contentStart = sink.position();
+                sink.putAscii("BT\n/F1 10 Tf\n");
+                int y = PAGE_HEIGHT - MARGIN;
+                putCell(sink, MARGIN, y, schema.getTitle() + " - page " + page);
+                y -= LEADING * 2;
+                for (int i = 0; i < columns; i++) {
+                    putCell(sink, MARGIN + i * COLUMN_WIDTH, y, schema.getColumns().get(i));
+                }
+                for (int line = 0; line < ROWS_PER_PAGE && iterator.hasNext(); line++) {
+                    ReportRow row = iterator.next();
+                    y -= LEADING;
+                    for (int i = 0; i < columns; i++) {
+                        sink.putAscii("1 0 0 1 ").putLong(MARGIN + i * COLUMN_WIDTH).put(' ').putLong(y)
+                                .putAscii(" Tm (");
+                        Object value = row.value(i);
+                        if (value instanceof String) {
+                            putPdfText(sink, (String) value);
+                        } else {
+                            sink.putValue(value);
+                        }
+                        sink.putAscii(") Tj\n");
+                    }
+                }
+                sink.putAscii("ET\n");
+                long contentLength = sink.position() - contentStart;
+                sink.putAscii("endstream\nendobj\n");
+                offsets = record(offsets, pageObject + 2, sink.position());
+                sink.putLong(pageObject + 2).putAscii(" 0 obj\n").putLong(contentLength).putAscii("\nendobj\n");
+            } while (iterator.hasNext());
+
+            offsets = record(offsets, 2, sink.position());
+            sink.putAscii("2 0 obj\n<< /Type /Pages /Count ").putLong(page).putAscii(" /Kids [");
+            for (int i = 0; i < page; i++) {
+                sink.put(' ').putLong(FIRST_PAGE_OBJECT + i * 3).putAscii(" 0 R");
+            }
+            sink.putAscii(" ] >>\nendobj\n");
+            offsets = record(offsets, 1, sink.position());
+            sink.putAscii("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+            int objects = FIRST_PAGE_OBJECT + page * 3;
+            long xref = sink.position();
+            sink.putAscii("xref\n0 ").putLong(objects).putAscii("\n0000000000 65535 f \n");
+            for (int i = 1; i < objects; i++) {
+                String offset = Long.toString(offsets[i]);
+                sink.putAscii("0000000000".substring(offset.length())).putAscii(offset).putAscii(" 00000 n \n");
+            }
+            sink.putAscii("trailer\n<< /Size ").putLong(objects).putAscii(" /Root 1 0 R >>\nstartxref\n")
+                    .putLong(xref).putAscii("\n%%EOF\n");
+        }
+    }
+
+    public void export(OutputStream out) throws IOException {
+        export(Channels.newChannel(out));
+        out.flush();
+    }
+
+    private static long[] record(long[] offsets, int object, long offset) {
+        if (object >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, object + 1));
+        }
+        offsets[object] = offset;
+        return offsets;
+    }
+
+    private static void putCell(ChannelSink sink, int x, int y, String text) throws IOException {
+        sink.putAscii("1 0 0 1 ").putLong(x).put(' ').putLong(y).putAscii(" Tm (");
+        putPdfText(sink, text);
+        sink.putAscii(") Tj\n");
+    }
+
+    // Строка PDF в кодировке стандартного шрифта: скобки и \ экранируются,
+    // символы вне Latin-1 заменяются на '?'
+    private static void putPdfText(ChannelSink sink, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '(' || c == ')' || c == '\\') {
+                sink.put('\\').put(c);
+            } else if (c >= 0x20 && c < 0x7F) {
+                sink.put(c);
+            } else if (c >= 0xA0 && c <= 0xFF) {
+                sink.put('\\').putAscii(Integer.toOctalString(c)); // Восьмеричный код байта
+            } else {
+                sink.put('?');
+            }
+        }
+    }
+
+    @Override
+    public String generate() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            export(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(StandardCharsets.ISO_8859_1);
+    }
+}
+
+// Формат экспорта в конце цепочки декораторов
+enum ExportFormat {
+    NONE,
+    CSV,
+    PDF
+}
+
+// План выполнения цепочки декораторов после оптимизации: источник с диапазоном дат,
+// одна сортировка по составному ключу и экспорт, выполняемые за один проход по строкам
+class ReportPlan implements IReport {
+    static final int PARTITION_ROWS = 1 << 16; // Строк в части при параллельном выполнении
+
+    private final IReport source;
+    private final String originalChain;
+    private final LocalDate start; // null - без фильтра по датам
+    private final LocalDate end;
+    private final int filterCount;
+    private final boolean pushedDown;
+    private final boolean presorted;
+    private final List<String> sortKeys; // Главный ключ первым
+    private final long memoryBudgetBytes;
+    private final int parallelism;
+    private final ExportFormat format;
+    private final ForkJoinPool pool; // null - последовательное выполнение
+
+    ReportPlan(IReport source, String originalChain, LocalDate start, LocalDate end, int filterCount,
+               List<String> sortKeys, long memoryBudgetBytes, int parallelism, ExportFormat format) {
+        this.source = source;
+        this.originalChain = originalChain;
+        this.start = start;
+        this.end = end;
+        this.filterCount = filterCount;
+        this.pushedDown = start != null && source instanceof DateRangeReport;
+        // Устойчивая сортировка по столбцу, по которому источник уже упорядочен, ничего не меняет
+        this.presorted = sortKeys.size() == 1 && source instanceof DateRangeReport
+                && sortKeys.get(0).equals(((DateRangeReport) source).getSortedBy());
+        this.sortKeys = presorted ? List.of() : List.copyOf(sortKeys);
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.parallelism = parallelism;
+        this.format = format;
+        this.pool = null;
+    }
+
+    private ReportPlan(ReportPlan plan, ForkJoinPool pool) {
+        this.source = plan.source;
+        this.originalChain = plan.originalChain;
+        this.start = plan.start;
+        this.end = plan.end;
+        this.filterCount = plan.filterCount;
+        this.pushedDown = plan.pushedDown;
+        this.presorted = plan.presorted;
+        this.sortKeys = plan.sortKeys;
+        this.memoryBudgetBytes = plan.memoryBudgetBytes;
+        this.parallelism = plan.parallelism;
+        this.format = plan.format;
+        this.pool = pool;
+    }
+
+    // Тот же план с параллельным выполнением на пуле: строки источника делятся на части,
+    // фильтр и сортировка идут по частям, части сливаются по порядку. Вывод совпадает
+    // с последовательным; число потоков задается параллелизмом пула
+    public ReportPlan parallel(ForkJoinPool pool) {
+        return new ReportPlan(this, pool);
+    }
+
+    public boolean isParallel() {
+        return pool != null && source instanceof PartitionedReport;
+    }
+
+    public IReport getSource() {
+        return source;
+    }
+
+    public LocalDate getStart() {
+        return start;
+    }
+
+    public LocalDate getEnd() {
+        return end;
+    }
+
+    public List<String> getSortKeys() {
+        return sortKeys;
+    }
+
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    // Пересечение фильтров пусто: источник не читается вовсе
+    public boolean isEmptyRange() {
+        return start != null && start.isAfter(end);
+    }
+
+    @Override
+    public ReportSchema schema() {
+        return source.schema();
+    }
+
+    // Сортировка sortBy поверх сортировки по другому ключу - это одна устойчивая сортировка
+    // по главному ключу с уточнением по остальным
+    Comparator<ReportRow> comparator() {
+        Comparator<ReportRow> comparator = schema().comparator(sortKeys.get(0));
+        for (int i = 1; i < sortKeys.size(); i++) {
+            comparator = comparator.thenComparing(schema().comparator(sortKeys.get(i)));
+        }
+        return comparator;
+    }
+
+    // Строки после фильтра и сортировки, до экспорта
+    @Override
+    public Stream<ReportRow> rows() {
+        if (isParallel() && !isEmptyRange()) {
+            return parallelRows();
+        }
+        Stream<ReportRow> rows;
+        if (isEmptyRange()) {
+            rows = Stream.empty();
+        } else if (start == null) {
+            rows = source.rows();
+        } else if (pushedDown) {
+            rows = ((DateRangeReport) source).rows(start, end);
+        } else {
+            rows = source.rows().filter(row -> !row.getDate().isBefore(start) && !row.getDate().isAfter(end));
+        }
+        if (!sortKeys.isEmpty()) {
+            rows = new ExternalSorter(comparator(), schema().getCodec(), memoryBudgetBytes, parallelism,
+                    ForkJoinPool.commonPool()).sort(rows);
+        }
+        return rows;
+    }
+
+    // Части задаются числом строк, а не числом потоков: память параллельного режима
+    // не зависит от размера источника
+    private Stream<ReportRow> parallelRows() {
+        int threads = pool.getParallelism();
+        List<Supplier<Stream<ReportRow>>> partitions = ((PartitionedReport) source)
+                .partitions(PARTITION_ROWS, start, end);
+        if (sortKeys.isEmpty()) {
+            OrderedPartitions ordered = new OrderedPartitions(partitions, pool, threads);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(ordered, Spliterator.ORDERED), false)
+                    .onClose(ordered::cancel);
+        }
+        // Части сортируются на пуле в пределах общего бюджета и сливаются по порядку
+        return new ExternalSorter(comparator(), schema().getCodec(), memoryBudgetBytes, threads, pool)
+                .sortPartitions(partitions);
+    }
+
+    public void export(WritableByteChannel channel) throws IOException {
+        export(rows(), channel);
+    }
+
+    // Экспорт готовых строк плана, например из кэша
+    public void export(Stream<ReportRow> rows, WritableByteChannel channel) throws IOException {
+        switch (format) {
+            case CSV:
+                CsvExportDecorator.write(schema(), rows, channel);
+                break;
+            case PDF:
+                PdfExportDecorator.write(schema(), rows, channel);
+                break;
+            default:
+                throw new IllegalStateException("Цепочка не заканчивается экспортом");
+        }
+    }
+
+    // Канонический отпечаток плана: данные источника, итоговый диапазон, ключи сортировки
+    // и, если нужно, формат. Параметры, не влияющие на результат, в отпечаток не входят
+    public String fingerprint(boolean withFormat) {
+        StringBuilder key = new StringBuilder(source instanceof CacheableReport
+                ? ((CacheableReport) source).getDataKey() : source.getClass().getName() + "@" + System.identityHashCode(source));
+        key.append("|range=");
+        if (isEmptyRange()) {
+            key.append("empty");
+        } else if (start != null) {
+            key.append(start).append("..").append(end);
+        } else {
+            key.append("all");
+        }
+        key.append("|sort=").append(String.join(",", sortKeys));
+        if (withFormat) {
+            key.append("|format=").append(format);
+        }
+        return key.toString();
+    }
+
     @Override
     public String generate() {
-        return super.generate() + " | Exported as PDF";
+        if (format == ExportFormat.NONE) {
+            return IReport.super.generate();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            export(Channels.newChannel(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(format == ExportFormat.PDF ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    // Исходная цепочка и выбранный план, от последнего этапа к источнику
+    public String explain() {
+        String newline = System.lineSeparator();
+        StringBuilder text = new StringBuilder("Chain: ").append(originalChain).append(newline).append("Plan:");
+        String indent = newline + "  ";
+        if (format != ExportFormat.NONE) {
+            text.append(indent).append("Export ").append(format).append(" (fused with the row pass)");
+            indent += "  ";
+        }
+        if (isParallel()) {
+            text.append(indent).append("Merge in order: partitions of ").append(PARTITION_ROWS)
+                    .append(" rows on ").append(pool.getParallelism()).append(" threads");
+            indent += "  ";
+        }
+        if (!sortKeys.isEmpty()) {
+            text.append(indent).append("Sort by ").append(String.join(", then ", sortKeys));
+            if (sortKeys.size() > 1) {
+                text.append(" (").append(sortKeys.size()).append(" sorts merged)");
+            }
+            if (isParallel()) {
+                text.append(" per partition");
+            }
+            text.append(" [memory budget ").append(memoryBudgetBytes >> 20).append(" MB, ")
+                    .append(isParallel() ? pool.getParallelism() : parallelism).append(" threads]");
+            indent += "  ";
+        }
+        if (presorted) {
+            text.append(indent).append("Sort skipped: source is already ordered by ")
+                    .append(((DateRangeReport) source).getSortedBy());
+        }
+        text.append(indent).append("Scan ").append(describe(source));
+        if (isEmptyRange()) {
+            text.append(" skipped: date filters do not intersect");
+        } else if (start != null) {
+            text.append(pushedDown ? ", source range [" : ", filter [").append(start).append(", ").append(end).append(']');
+            if (pushedDown) {
+                text.append(": ").append(((DateRangeReport) source).explainRange(start, end));
+            }
+            if (filterCount > 1) {
+                text.append(" (").append(filterCount).append(" filters merged)");
+            }
+        }
+        return text.toString();
+    }
+
+    static String describe(IReport report) {
+        if (report instanceof DateFilterDecorator) {
+            DateFilterDecorator filter = (DateFilterDecorator) report;
+            return "DateFilter[" + filter.getStart() + ", " + filter.getEnd() + "]";
+        } else if (report instanceof SortingDecorator) {
+            return "Sort[" + ((SortingDecorator) report).getSortBy() + "]";
+        } else if (report instanceof CsvExportDecorator) {
+            return "CsvExport";
+        } else if (report instanceof PdfExportDecorator) {
+            return "PdfExport";
+        } else if (report instanceof ReportDecorator) {
+            return report.getClass().getSimpleName();
+        }
+        return report.schema().getTitle();
+    }
+}
+
+// Планировщик цепочки декораторов. Фильтры по датам переставляются с сортировками
+// и объединяются в один диапазон, который передается источнику; соседние сортировки
+// сливаются в одну; экспорт пишет строки в том же проходе. Незнакомый декоратор
+// не переставляется и становится источником плана вместе со всем, что под ним
+class ReportPlanner {
+    private ReportPlanner() {
+    }
+
+    public static ReportPlan optimize(IReport report) {
+        ExportFormat format = ExportFormat.NONE;
+        LocalDate start = null;
+        LocalDate end = null;
+        int filterCount = 0;
+        List<String> sortKeys = new ArrayList<>();
+        long memoryBudgetBytes = SortingDecorator.DEFAULT_MEMORY_BUDGET;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        StringBuilder chain = new StringBuilder();
+        IReport node = report;
+        while (true) {
+            chain.append(ReportPlan.describe(node));
+            if (node instanceof CsvExportDecorator || node instanceof PdfExportDecorator) {
+                // Экспорт внутри цепочки пропускает строки без изменений; формат задает только внешний
+                if (node == report) {
+                    format = node instanceof CsvExportDecorator ? ExportFormat.CSV : ExportFormat.PDF;
+                }
+            } else if (node instanceof DateFilterDecorator) {
+                DateFilterDecorator filter = (DateFilterDecorator) node;
+                start = start == null || filter.getStart().isAfter(start) ? filter.getStart() : start;
+                end = end == null || filter.getEnd().isBefore(end) ? filter.getEnd() : end;
+                filterCount++;
+            } else if (node instanceof SortingDecorator) {
+                SortingDecorator sorting = (SortingDecorator) node;
+                if (sortKeys.isEmpty()) {
+                    memoryBudgetBytes = sorting.getMemoryBudgetBytes();
+                    parallelism = sorting.getParallelism();
+                }
+                sortKeys.add(sorting.getSortBy());
+            } else {
+                break;
+            }
+            chain.append(" <- ");
+            node = ((ReportDecorator) node).getReport();
+        }
+        return new ReportPlan(node, chain.toString(), start, end, filterCount, sortKeys,
+                memoryBudgetBytes, parallelism, format);
+    }
+}
+
+// Хранилище продаж в одном файле: строки упорядочены по дате и разбиты на блоки
+// не длиннее rowsPerBlock, не пересекающие границу месяца. Разреженный индекс в конце
+// файла хранит для каждого блока наименьшую и наибольшую дату и положение блока,
+// поэтому диапазон дат находится двоичным поиском и читаются только нужные блоки
+class SalesStore implements Closeable {
+    private static final int MAGIC = 0x534C5331; // "SLS1"
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES * 2;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long[] minDays;
+    private final long[] maxDays;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] rowCounts;
+
+    private SalesStore(Path file, FileChannel channel, long[] minDays, long[] maxDays, long[] offsets,
+                       int[] lengths, int[] rowCounts) {
+        this.file = file;
+        this.channel = channel;
+        this.minDays = minDays;
+        this.maxDays = maxDays;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.rowCounts = rowCounts;
+    }
+
+    // Построение хранилища: строки сортируются по дате внешней сортировкой с сохранением
+    // порядка строк за один день, затем пишутся блоками и индексом
+    public static SalesStore build(Stream<ReportRow> rows, Path file, int rowsPerBlock) throws IOException {
+        ExternalSorter sorter = new ExternalSorter(SalesReport.SCHEMA.comparator("date"), SaleRow.CODEC,
+                SortingDecorator.DEFAULT_MEMORY_BUDGET, Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.commonPool());
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream blockOut = new DataOutputStream(block);
+        int blockCount = 0;
+        try (Stream<ReportRow> sorted = sorter.sort(rows);
+             FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long minDay = 0;
+            long maxDay = 0;
+            int blockRows = 0;
+            Iterator<ReportRow> iterator = sorted.iterator();
+            while (true) {
+                ReportRow row = iterator.hasNext() ? iterator.next() : null;
+                long day = row != null ? row.getDate().toEpochDay() : 0;
+                boolean newMonth = row != null && blockRows > 0
+                        && !YearMonth.from(row.getDate()).equals(YearMonth.from(LocalDate.ofEpochDay(minDay)));
+                if (blockRows > 0 && (row == null || blockRows == rowsPerBlock || newMonth)) {
+                    indexOut.writeLong(minDay);
+                    indexOut.writeLong(maxDay);
+                    indexOut.writeLong(position);
+                    indexOut.writeInt(block.size());
+                    indexOut.writeInt(blockRows);
+                    position += writeFully(out, ByteBuffer.wrap(block.toByteArray()));
+                    block.reset();
+                    blockRows = 0;
+                    blockCount++;
+                }
+                if (row == null) {
+                    break;
+                }
+                if (blockRows == 0) {
+                    minDay = day;
+                }
+                maxDay = day;
+                SaleRow.CODEC.write(blockOut, row);
+                blockRows++;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(position).putInt(blockCount).putInt(MAGIC);
+            writeFully(out, ByteBuffer.wrap(index.toByteArray()));
+            writeFully(out, trailer.flip());
+        }
+        return open(file);
+    }
+
+    private static long writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer);
+        }
+        return written;
+    }
+
+    // Открытие хранилища: в память читается только индекс
+    public static SalesStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer trailer = readAt(channel, channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int blockCount = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Файл не является хранилищем продаж: " + file);
+            }
+            ByteBuffer index = readAt(channel, indexOffset, blockCount * 32);
+            long[] minDays = new long[blockCount];
+            long[] maxDays = new long[blockCount];
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] rowCounts = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                minDays[i] = index.getLong();
+                maxDays[i] = index.getLong();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                rowCounts[i] = index.getInt();
+            }
+            return new SalesStore(file, channel, minDays, maxDays, offsets, lengths, rowCounts);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Чтение с позиции; позиционное чтение канала безопасно из нескольких потоков
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Хранилище продаж обрезано");
+            }
+        }
+        return buffer.flip();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int blockCount() {
+        return minDays.length;
+    }
+
+    public long rowCount() {
+        long count = 0;
+        for (int rows : rowCounts) {
+            count += rows;
+        }
+        return count;
+    }
+
+    // Первый блок, в котором могут быть даты не раньше start (наибольшие даты блоков не убывают)
+    public int firstBlock(LocalDate start) {
+        long day = start.toEpochDay();
+        int low = 0;
+        int high = maxDays.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (maxDays[middle] < day) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Блок за последним, в котором могут быть даты не позже end
+    public int endBlock(LocalDate end) {
+        long day = end.toEpochDay();
+        int low = 0;
+        int high = minDays.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (minDays[middle] <= day) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Строки блока целиком
+    public List<ReportRow> readBlock(int block) {
+        try {
+            ByteBuffer bytes = readAt(channel, offsets[block], lengths[block]);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+            List<ReportRow> rows = new ArrayList<>(rowCounts[block]);
+            for (int i = 0; i < rowCounts[block]; i++) {
+                rows.add(SaleRow.CODEC.read(in));
+            }
+            return rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Stream<ReportRow> rows() {
+        return blocks(0, blockCount());
+    }
+
+    // Строки с датой в [start, end]: фильтр нужен только в крайних блоках диапазона
+    public Stream<ReportRow> rows(LocalDate start, LocalDate end) {
+        long startDay = start.toEpochDay();
+        long endDay = end.toEpochDay();
+        return blocks(firstBlock(start), endBlock(end)).filter(row -> {
+            long day = row.getDate().toEpochDay();
+            return day >= startDay && day <= endDay;
+        });
+    }
+
+    // Блоки диапазона, поделенные на части подряд идущими группами не меньше partitionRows строк
+    public List<Supplier<Stream<ReportRow>>> partitions(int partitionRows, LocalDate start, LocalDate end) {
+        int from = start != null ? firstBlock(start) : 0;
+        int to = start != null ? Math.max(from, endBlock(end)) : blockCount();
+        List<Supplier<Stream<ReportRow>>> partitions = new ArrayList<>();
+        int first = from;
+        long rows = 0;
+        for (int block = from; block < to; block++) {
+            rows += rowCounts[block];
+            if (rows >= partitionRows || block == to - 1) {
+                int groupFrom = first;
+                int groupTo = block + 1;
+                partitions.add(() -> PartitionedReport.inRange(blocks(groupFrom, groupTo), start, end));
+                first = groupTo;
+                rows = 0;
+            }
+        }
+        return partitions;
+    }
+
+    // Ленивое чтение блоков [from, to): следующий блок читается, когда закончился текущий
+    private Stream<ReportRow> blocks(int from, int to) {
+        return IntStream.range(from, Math.max(from, to)).mapToObj(this::readBlock).flatMap(List::stream);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Канал, который пишет в целевой канал и одновременно копирует байты в память,
+// пока их не больше limit
+class TeeChannel implements WritableByteChannel {
+    private final WritableByteChannel target;
+    private final long limit;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    public TeeChannel(WritableByteChannel target, long limit) {
+        this.target = target;
+        this.limit = limit;
+    }
+
+    // Копия записанного; null, если вывод превысил предел
+    public byte[] getCopy() {
+        return copy != null ? copy.toByteArray() : null;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int start = source.position();
+        int written = target.write(source);
+        // Копируются только записанные байты: остаток частичной записи придет повторно
+        if (copy != null && written > 0) {
+            if (copy.size() + written > limit) {
+                copy = null;
+            } else {
+                byte[] bytes = new byte[written];
+                source.duplicate().position(start).get(bytes);
+                copy.write(bytes, 0, written);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return target.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+}
+
+// Кэш результатов отчетов с ограничением по размеру и вытеснением давно не использованных.
+// Ключ - канонический отпечаток плана после ReportPlanner, поэтому разные по записи,
+// но равные по смыслу цепочки попадают в одну запись. Кроме готового вывода хранятся
+// строки после фильтра и сортировки: запрос, отличающийся только форматом, лишь
+// экспортирует их. Запись с устаревшей версией данных источника не используется
+class ReportCache {
+    // Готовый вывод или строки до экспорта
+    private static final class Entry {
+        final String dataKey;
+        final long dataVersion;
+        final byte[] output;
+        final List<ReportRow> rows;
+        final long bytes;
+
+        Entry(String dataKey, long dataVersion, byte[] output, List<ReportRow> rows, long bytes) {
+            this.dataKey = dataKey;
+            this.dataVersion = dataVersion;
+            this.output = output;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hitCount;
+    private long intermediateHitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public ReportCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Размер кэша должен быть положительным");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    // Экспорт цепочки в канал: из кэша, из кэшированных строк или с вычислением.
+    // Вычисленный вывод идет в канал сразу и кэшируется, если помещается в кэш
+    public void export(IReport report, WritableByteChannel channel) throws IOException {
+        ReportPlan plan = ReportPlanner.optimize(report);
+        if (plan.getFormat() == ExportFormat.NONE) {
+            throw new IllegalArgumentException("Цепочка не заканчивается экспортом");
+        }
+        if (!(plan.getSource() instanceof CacheableReport)) {
+            plan.export(channel);
+            return;
+        }
+        CacheableReport source = (CacheableReport) plan.getSource();
+        String dataKey = source.getDataKey();
+        long dataVersion = source.getDataVersion();
+        String outputKey = plan.fingerprint(true);
+        Entry cached = lookup(outputKey, dataVersion);
+        if (cached != null) {
+            synchronized (this) {
+                hitCount++;
+            }
+            ByteBuffer output = ByteBuffer.wrap(cached.output);
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+            return;
+        }
+
+        String rowsKey = plan.fingerprint(false);
+        Entry rows = lookup(rowsKey, dataVersion);
+        TeeChannel tee = new TeeChannel(channel, maxBytes);
+        if (rows != null) {
+            synchronized (this) {
+                intermediateHitCount++;
+            }
+            plan.export(rows.rows.stream(), tee);
+        } else {
+            synchronized (this) {
+                missCount++;
+            }
+            // Строки копируются по пути к экспорту, пока их оценка помещается в кэш
+            RowCodec codec = plan.schema().getCodec();
+            List<ReportRow> collected = new ArrayList<>();
+            long[] collectedBytes = {0}; // Больше maxBytes - строки не кэшируются
+            Stream<ReportRow> computed = plan.rows().peek(row -> {
+                if (collectedBytes[0] <= maxBytes) {
+                    collectedBytes[0] += codec.estimateBytes(row);
+                    if (collectedBytes[0] > maxBytes) {
+                        collected.clear();
+                    } else {
+                        collected.add(row);
+                    }
+                }
+            });
+            plan.export(computed, tee);
+            if (collectedBytes[0] <= maxBytes) {
+                store(rowsKey, new Entry(dataKey, dataVersion, null, collected, collectedBytes[0]));
+            }
+        }
+        byte[] output = tee.getCopy();
+        if (output != null) {
+            store(outputKey, new Entry(dataKey, dataVersion, output, null, output.length));
+        }
+    }
+
+    // Действующая запись; запись по устаревшим данным удаляется
+    private synchronized Entry lookup(String key, long dataVersion) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.dataVersion != dataVersion) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void store(String key, Entry entry) {
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        totalBytes += entry.bytes;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictionCount++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalBytes -= removed.bytes;
+        }
+    }
+
+    // Сброс всех записей источника, например после загрузки новых данных
+    public synchronized void invalidate(String dataKey) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.dataKey.equals(dataKey)) {
+                totalBytes -= entry.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getIntermediateHitCount() {
+        return intermediateHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
+
+// Деление файла CSV на части по границам строк: строка относится к части,
+// в которой лежит ее первый байт
+final class CsvPartitions {
+    private CsvPartitions() {
+    }
+
+    // Границы count частей: начало каждой части сдвинуто к началу строки
+    static long[] boundaries(Path file, int count) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = new long[count + 1];
+            ByteBuffer one = ByteBuffer.allocate(1);
+            for (int i = 1; i < count; i++) {
+                long position = Math.max(bounds[i - 1], size * i / count);
+                // Часть начинается сразу после ближайшего перевода строки
+                while (position > 0 && position < size) {
+                    one.clear();
+                    channel.read(one, position - 1);
+                    if (one.get(0) == '\n') {
+                        break;
+                    }
+                    position++;
+                }
+                bounds[i] = Math.min(position, size);
+            }
+            bounds[count] = size;
+            return bounds;
+        }
+    }
+
+    // Непустые строки из байтов [from, to) в UTF-8
+    static Stream<String> lines(Path file, long from, long to) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ).position(from);
+            BufferedInputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+            Iterator<String> iterator = new Iterator<String>() {
+                private long position = from;
+                private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    try {
+                        while (next == null && position < to) {
+                            line.reset();
+                            int b;
+                            while ((b = in.read()) >= 0) {
+                                position++;
+                                if (b == '\n') {
+                                    break;
+                                }
+                                line.write(b);
+                            }
+                            if (b < 0) {
+                                position = to;
+                            }
+                            String text = line.toString(StandardCharsets.UTF_8);
+                            text = text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+                            if (!text.isBlank()) {
+                                next = text;
+                            }
+                        }
+                        return next != null;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String result = next;
+                    next = null;
+                    return result;
+                }
+            };
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                    .onClose(() -> {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Число частей примерно по partitionRows строк; длина строки оценивается по началу файла
+    static int partitionCount(Path file, int partitionRows) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate(1 << 16);
+            while (sample.hasRemaining() && channel.read(sample) > 0) {
+                // Чтение до заполнения образца или конца файла
+            }
+            int lines = 0;
+            for (int i = 0; i < sample.position(); i++) {
+                lines += sample.get(i) == '\n' ? 1 : 0;
+            }
+            double lineBytes = (double) sample.position() / Math.max(1, lines);
+            long count = (long) Math.ceil(channel.size() / (lineBytes * partitionRows));
+            return (int) Math.max(1, Math.min(count, Integer.MAX_VALUE / 2));
+        }
+    }
+
+    // Части файла со строками, разобранными parser и отобранными по датам
+    static List<Supplier<Stream<ReportRow>>> partitions(Path file, int partitionRows,
+                                                        Function<String, ReportRow> parser,
+                                                        LocalDate start, LocalDate end) {
+        long[] bounds;
+        int count;
+        try {
+            count = partitionCount(file, partitionRows);
+            bounds = boundaries(file, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Supplier<Stream<ReportRow>>> partitions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long from = bounds[i];
+            long to = bounds[i + 1];
+            if (from < to) {
+                partitions.add(() -> PartitionedReport.inRange(lines(file, from, to).map(parser), start, end));
+            }
+        }
+        return partitions;
+    }
+}
+
+// Части по порядку: не больше window частей читаются заранее на пуле. Каждая часть передает
+// строки пачками через свою ограниченную очередь, поэтому в памяти не больше
+// window * (QUEUE_BATCHES + 1) пачек по BATCH_ROWS строк, каким бы большим ни был источник
+class OrderedPartitions implements Iterator<ReportRow> {
+    static final int BATCH_ROWS = 1024;
+    private static final int QUEUE_BATCHES = 4;
+    private static final List<ReportRow> END = Collections.emptyList(); // Конец части
+
+    // Очередь части и задача, которая ее заполняет
+    private static final class Feed {
+        private final BlockingQueue<List<ReportRow>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private ForkJoinTask<?> task;
+    }
+
+    private final List<Supplier<Stream<ReportRow>>> partitions;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final Deque<Feed> pending = new ArrayDeque<>();
+    private volatile boolean cancelled;
+    private int submitted;
+    private Iterator<ReportRow> current = Collections.emptyIterator();
+
+    public OrderedPartitions(List<Supplier<Stream<ReportRow>>> partitions, ForkJoinPool pool, int window) {
+        this.partitions = partitions;
+        this.pool = pool;
+        this.window = Math.max(1, window);
+        fill();
+    }
+
+    private void fill() {
+        while (!cancelled && pending.size() < window && submitted < partitions.size()) {
+            Supplier<Stream<ReportRow>> partition = partitions.get(submitted++);
+            Feed feed = new Feed();
+            feed.task = pool.submit(() -> produce(partition, feed.queue));
+            pending.add(feed);
+        }
+    }
+
+    // Чтение части на пуле: пачки отдаются, пока в очереди есть место
+    private void produce(Supplier<Stream<ReportRow>> partition, BlockingQueue<List<ReportRow>> queue) {
+        try (Stream<ReportRow> rows = partition.get()) {
+            Iterator<ReportRow> iterator = rows.iterator();
+            List<ReportRow> batch = new ArrayList<>(BATCH_ROWS);
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == BATCH_ROWS) {
+                    hand(queue, batch);
+                    batch = new ArrayList<>(BATCH_ROWS);
+                }
+            }
+            if (!batch.isEmpty()) {
+                hand(queue, batch);
+            }
+        } finally {
+            hand(queue, END); // Конец части передается и при ошибке, ее получит join
+        }
+    }
+
+    private void hand(BlockingQueue<List<ReportRow>> queue, List<ReportRow> batch) {
+        try {
+            while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new CancellationException("Чтение отчета прервано");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Чтение отчета прервано");
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && !pending.isEmpty()) {
+            Feed head = pending.peek();
+            List<ReportRow> batch;
+            try {
+                batch = head.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new CancellationException("Чтение отчета прервано");
+            }
+            if (batch == END) {
+                head.task.join(); // Ошибка чтения части передается читателю
+                pending.poll();
+                fill();
+            } else {
+                current = batch.iterator();
+            }
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public ReportRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    // Остановка чтения, если строки больше не нужны: еще не начатые части отменяются,
+    // начатые завершаются при следующей передаче пачки
+    public void cancel() {
+        cancelled = true;
+        for (Feed feed : pending) {
+            feed.task.cancel(false);
+        }
+        pending.clear();
     }
 }
 
@@ -106,10 +2280,65 @@ public class Main {
 
         System.out.println(decoratedReport.generate());
 
+        // Обратная вложенность: сортировка строк, которые потом отфильтруются. Планировщик
+        // переносит фильтры к источнику и объединяет их
+        ReportPlan plan = ReportPlanner.optimize(new CsvExportDecorator(
+                new DateFilterDecorator(
+                        new SortingDecorator(
+                                new DateFilterDecorator(salesReport, "2023-01-01", "2023-12-31"), "sale amount"),
+                        "2023-03-01", "2024-06-30")));
+        System.out.println(plan.explain());
+        System.out.println(plan.generate());
+
+        // Хранилище с индексом дат: фильтр за месяц читает только блоки этого месяца
+        try {
+            Path storeFile = Files.createTempFile("sales", ".store");
+            try (SalesStore store = SalesStore.build(salesReport.rows(), storeFile, 1024)) {
+                ReportPlan monthly = ReportPlanner.optimize(new SortingDecorator(
+                        new DateFilterDecorator(new SalesReport(store), "2023-03-01", "2023-03-31"), "date"));
+                System.out.println(monthly.explain());
+                System.out.println(monthly.generate());
+            } finally {
+                Files.deleteIfExists(storeFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Кэш результатов: повторный запрос берется из кэша целиком, запрос в другом формате
+        // экспортирует уже отфильтрованные и отсортированные строки
+        ReportCache reportCache = new ReportCache(16L << 20);
+        try {
+            for (int i = 0; i < 2; i++) {
+                reportCache.export(decoratedReport, Channels.newChannel(OutputStream.nullOutputStream()));
+            }
+            reportCache.export(new PdfExportDecorator(new SortingDecorator(
+                    new DateFilterDecorator(salesReport, "2023-01-01", "2023-12-31"), "date")),
+                    Channels.newChannel(OutputStream.nullOutputStream()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Кэш отчетов: попаданий " + reportCache.getHitCount() + ", по строкам "
+                + reportCache.getIntermediateHitCount() + ", промахов " + reportCache.getMissCount());
+
+        // Параллельное выполнение: части источника фильтруются и сортируются на пуле,
+        // результат совпадает с последовательным
+        ReportPlan parallelPlan = plan.parallel(new ForkJoinPool(4));
+        System.out.println(parallelPlan.explain());
+        System.out.println("Совпадает с последовательным: " + parallelPlan.generate().equals(plan.generate()));
+
         // Создаем отчет по пользователям и применяем декораторы: сортировка и экспорт в PDF
         IReport userReport = new UserReport();
-        IReport userDecoratedReport = new PdfExportDecorator(new SortingDecorator(userReport, "registration date"));
+        PdfExportDecorator userDecoratedReport = new PdfExportDecorator(new SortingDecorator(userReport, "registration date"));
 
-        System.out.println(userDecoratedReport.generate());
+        // PDF пишется в файл постранично, не собираясь в памяти целиком
+        Path pdfFile = Paths.get("user_report.pdf");
+        try (FileChannel channel = FileChannel.open(pdfFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            userDecoratedReport.export(channel);
+            System.out.println("Отчет по пользователям сохранен в " + pdfFile.toAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
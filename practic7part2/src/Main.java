@@ -1,10 +1,55 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
 
 interface IObserver {
     void update(String stockSymbol, double price);
+
+    // Уведомление с номером акции; наблюдатели с таблицами по номерам переопределяют его
+    default void update(int symbolId, String stockSymbol, double price) {
+        update(stockSymbol, price);
+    }
+
+    // Все котировки пакета для этого наблюдателя за один вызов; по умолчанию по одной
+    default void onBatch(TickBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            update(batch.symbolId(i), batch.symbol(i), batch.price(i));
+        }
+    }
 }
 
 interface ISubject {
@@ -13,35 +58,1622 @@ interface ISubject {
     void notifyObservers(String stockSymbol, double price);
 }
 
+// Таблица акций: каждое название один раз получает плотный номер
+class SymbolTable {
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final IntConsumer ensureCapacity;
+    private final SymbolSlots<String> names = new SymbolSlots<>();
+    private int size;
+
+    // ensureCapacity расширяет массивы владельца по номерам до публикации нового номера
+    public SymbolTable(IntConsumer ensureCapacity) {
+        this.ensureCapacity = ensureCapacity;
+    }
+
+    // Номер акции; новая акция регистрируется
+    public int intern(String stockSymbol) {
+        Integer id = ids.get(stockSymbol);
+        return id != null ? id : register(stockSymbol);
+    }
+
+    private synchronized int register(String stockSymbol) {
+        Integer id = ids.get(stockSymbol);
+        if (id != null) {
+            return id;
+        }
+        names.set(size, stockSymbol); // Публикация имени до публикации номера
+        ensureCapacity.accept(size + 1); // Номер можно передать в changePrice сразу после публикации
+        ids.put(stockSymbol, size);
+        return size++;
+    }
+
+    // Номер зарегистрированной акции или -1
+    public int idOf(String stockSymbol) {
+        Integer id = ids.get(stockSymbol);
+        return id != null ? id : -1;
+    }
+
+    public String name(int symbolId) {
+        return names.get(symbolId);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
+
+// Последние цены по номерам акций. Блоки фиксированного размера не переносятся при росте,
+// поэтому запись цены идет без блокировок и не теряется
+class PriceStore {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final VarHandle PRICES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private volatile double[][] chunks = new double[0][];
+
+    // Место под номера [0, size); новые цены не определены
+    public synchronized void ensureCapacity(int size) {
+        int needed = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        if (needed > chunks.length) {
+            double[][] grown = Arrays.copyOf(chunks, needed);
+            for (int i = chunks.length; i < needed; i++) {
+                grown[i] = new double[CHUNK_SIZE];
+                Arrays.fill(grown[i], Double.NaN);
+            }
+            chunks = grown;
+        }
+    }
+
+    public void set(int symbolId, double price) {
+        PRICES.setRelease(chunks[symbolId >>> CHUNK_BITS], symbolId & (CHUNK_SIZE - 1), price);
+    }
+
+    // Атомарная замена цены; возвращается предыдущая
+    public double getAndSet(int symbolId, double price) {
+        return (double) PRICES.getAndSet(chunks[symbolId >>> CHUNK_BITS], symbolId & (CHUNK_SIZE - 1), price);
+    }
+
+    public double get(int symbolId) {
+        return (double) PRICES.getAcquire(chunks[symbolId >>> CHUNK_BITS], symbolId & (CHUNK_SIZE - 1));
+    }
+}
+
+// Ссылки по номерам акций в блоках фиксированного размера. Блоки не переносятся при росте:
+// запись публикует одну ячейку с семантикой release, копируется только каталог блоков.
+// Чтение идет без блокировок
+class SymbolSlots<T> {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private volatile Object[][] chunks = new Object[0][];
+
+    // Значение по номеру; null, если его еще не было
+    @SuppressWarnings("unchecked")
+    public T get(int symbolId) {
+        Object[][] current = chunks;
+        int chunk = symbolId >>> CHUNK_BITS;
+        return chunk < current.length
+                ? (T) SLOTS.getAcquire(current[chunk], symbolId & (CHUNK_SIZE - 1))
+                : null;
+    }
+
+    // Публикация значения: читатель, увидевший ссылку, видит и содержимое объекта
+    public synchronized void set(int symbolId, T value) {
+        int chunk = symbolId >>> CHUNK_BITS;
+        Object[][] current = chunks;
+        if (chunk >= current.length) {
+            current = Arrays.copyOf(current, Math.max(chunk + 1, current.length * 2));
+            for (int i = chunks.length; i < current.length; i++) {
+                current[i] = new Object[CHUNK_SIZE];
+            }
+            chunks = current;
+        }
+        SLOTS.setRelease(current[chunk], symbolId & (CHUNK_SIZE - 1), value);
+    }
+}
+
+// Потокобезопасная биржа. Акции получают плотные номера, цены и неизменяемые массивы
+// наблюдателей лежат в массивах по номеру акции. Подписка и отписка заменяют массив копией
+// под блокировкой, рассылка идет без блокировок и без создания объектов
 class StockExchange implements ISubject {
-    private Map<String, List<IObserver>> observers = new HashMap<>();
+    private final PriceStore prices = new PriceStore();
+    private final SymbolTable symbols = new SymbolTable(prices::ensureCapacity);
+    private final Object subscriptionLock = new Object();
+    private final SymbolSlots<IObserver[]> observersById = new SymbolSlots<>();
+    private final SymbolSlots<ThresholdIndex> thresholdsById = new SymbolSlots<>();
+    private final ConcurrentMap<IObserver, AsyncObserver> asyncObservers = new ConcurrentHashMap<>();
+    private final ThreadLocal<BatchFanOut> fanOuts = ThreadLocal.withInitial(BatchFanOut::new);
+    private volatile int asyncQueueCapacity; // 0 - синхронная доставка
+    private volatile boolean conflateUpdates;
+    private volatile TickHistory history;
+
+    // Номер акции для быстрого пути changePrice(int, double)
+    public int symbolId(String stockSymbol) {
+        return symbols.intern(stockSymbol);
+    }
+
+    public String symbolName(int symbolId) {
+        return symbols.name(symbolId);
+    }
+
+    // Последняя цена акции; NaN, если цены еще не было
+    public double lastPrice(int symbolId) {
+        return prices.get(symbolId);
+    }
+
+    public double lastPrice(String stockSymbol) {
+        int id = symbols.idOf(stockSymbol);
+        return id >= 0 ? prices.get(id) : Double.NaN;
+    }
+
+    // Запись всех последующих котировок в историю; null отключает запись
+    public void setHistory(TickHistory history) {
+        this.history = history;
+    }
+
+    public TickHistory getHistory() {
+        return history;
+    }
+
+    private void recordHistory(TickHistory target, int symbolId, long epochMillis, double price) {
+        try {
+            target.record(symbolId, symbols.name(symbolId), epochMillis, price);
+        } catch (UncheckedIOException e) {
+            e.printStackTrace(); // Сбой истории не должен останавливать рассылку цен
+        }
+    }
+
+    // Режим асинхронной доставки для последующих подписок
+    public synchronized void enableAsyncDelivery(int queueCapacity, boolean conflate) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Емкость очереди должна быть положительной");
+        }
+        conflateUpdates = conflate;
+        asyncQueueCapacity = queueCapacity;
+    }
+
+    // Очередь наблюдателя с метриками; null, если наблюдатель получает цены синхронно
+    public AsyncObserver getAsyncObserver(IObserver observer) {
+        return asyncObservers.get(observer);
+    }
+
+    // Объект, под которым наблюдатель хранится в массивах подписчиков
+    private IObserver registered(IObserver observer) {
+        AsyncObserver async = asyncObservers.get(observer);
+        return async != null ? async : observer;
+    }
+
+    // Наблюдатель получает одну очередь на все акции; вызывается под блокировкой подписок,
+    // каждая подписка асинхронного наблюдателя учитывается до последней отписки
+    private IObserver deliveryTarget(IObserver observer) {
+        int capacity = asyncQueueCapacity;
+        IObserver target = capacity == 0
+                ? registered(observer)
+                : asyncObservers.computeIfAbsent(observer, o -> new AsyncObserver(o, capacity, conflateUpdates));
+        if (target instanceof AsyncObserver) {
+            ((AsyncObserver) target).retain();
+        }
+        return target;
+    }
 
     @Override
     public void subscribe(IObserver observer, String stockSymbol) {
-        observers.computeIfAbsent(stockSymbol, k -> new ArrayList<>()).add(observer);
+        int id = symbolId(stockSymbol);
+        synchronized (subscriptionLock) {
+            IObserver target = deliveryTarget(observer);
+            IObserver[] current = observersById.get(id);
+            if (current == null) {
+                observersById.set(id, new IObserver[]{target});
+            } else {
+                IObserver[] copy = Arrays.copyOf(current, current.length + 1);
+                copy[current.length] = target;
+                observersById.set(id, copy);
+            }
+        }
         System.out.println("Наблюдатель подписан на акции: " + stockSymbol);
     }
 
+    // Пороговая подписка: наблюдатель получает цену, только когда она пересекает порог
+    public void subscribeThreshold(IObserver observer, String stockSymbol, double threshold) {
+        int id = symbolId(stockSymbol);
+        synchronized (subscriptionLock) {
+            IObserver target = deliveryTarget(observer);
+            ThresholdIndex current = thresholdsById.get(id);
+            thresholdsById.set(id, current == null
+                    ? new ThresholdIndex(new double[]{threshold}, new IObserver[]{target})
+                    : current.with(threshold, target));
+        }
+        System.out.println("Наблюдатель подписан на порог " + threshold + " акций: " + stockSymbol);
+    }
+
+    // Пороговая подписка автоматического трейдера по его собственному порогу
+    public void subscribeThreshold(AutomatedTrader trader, String stockSymbol) {
+        subscribeThreshold(trader, stockSymbol, trader.getThreshold());
+    }
+
     @Override
     public void unsubscribe(IObserver observer, String stockSymbol) {
-        if (observers.containsKey(stockSymbol)) {
-            observers.get(stockSymbol).remove(observer);
+        int id = symbols.idOf(stockSymbol);
+        boolean subscribed = id >= 0 && (observersById.get(id) != null || thresholdsById.get(id) != null);
+        if (subscribed) {
+            synchronized (subscriptionLock) {
+                // Подписка могла быть сделана до включения асинхронной доставки, поэтому
+                // снимается и сам наблюдатель, и его очередь; счетчик очереди уменьшают
+                // только снятые подписки очереди
+                AsyncObserver async = asyncObservers.get(observer);
+                int released = 0;
+                IObserver[] current = observersById.get(id);
+                if (current != null) {
+                    int position = indexOf(current, observer, async);
+                    if (position >= 0) {
+                        released += current[position] == async ? 1 : 0;
+                        observersById.set(id, without(current, position));
+                    }
+                }
+                ThresholdIndex index = thresholdsById.get(id);
+                if (index != null) {
+                    ThresholdIndex rest = index.without(observer);
+                    if (async != null && rest != null) {
+                        int before = rest.size();
+                        rest = rest.without(async);
+                        released += before - (rest != null ? rest.size() : 0);
+                    }
+                    thresholdsById.set(id, rest);
+                }
+                // После последней отписки очередь и поток наблюдателя больше не нужны
+                if (released > 0 && async.release(released)) {
+                    asyncObservers.remove(observer, async);
+                    async.close();
+                }
+            }
             System.out.println("Наблюдатель отписан от акций: " + stockSymbol);
         }
     }
 
+    // Копия массива без элемента в указанной позиции; null вместо пустого массива
+    private static IObserver[] without(IObserver[] current, int position) {
+        if (current.length == 1) {
+            return null;
+        }
+        IObserver[] copy = new IObserver[current.length - 1];
+        System.arraycopy(current, 0, copy, 0, position);
+        System.arraycopy(current, position + 1, copy, position, current.length - position - 1);
+        return copy;
+    }
+
+    // Первое вхождение наблюдателя или его очереди; -1, если нет ни того, ни другого
+    private static int indexOf(IObserver[] current, IObserver observer, AsyncObserver async) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(observer) || (async != null && current[i] == async)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public void notifyObservers(String stockSymbol, double price) {
-        if (observers.containsKey(stockSymbol)) {
-            for (IObserver observer : observers.get(stockSymbol)) {
-                observer.update(stockSymbol, price);
+        int id = symbols.idOf(stockSymbol);
+        if (id >= 0) {
+            notifyObservers(id, price);
+        }
+    }
+
+    public void notifyObservers(int symbolId, double price) {
+        // Снимок массива не меняется, даже если подписки меняются во время рассылки
+        IObserver[] snapshot = observersById.get(symbolId);
+        if (snapshot != null) {
+            String stockSymbol = symbols.name(symbolId);
+            for (IObserver observer : snapshot) {
+                observer.update(symbolId, stockSymbol, price);
             }
         }
     }
 
     public void changePrice(String stockSymbol, double newPrice) {
         System.out.println("Цена акции " + stockSymbol + " изменена на " + newPrice);
-        notifyObservers(stockSymbol, newPrice);
+        changePrice(symbolId(stockSymbol), newPrice);
+    }
+
+    // Быстрый путь ленты котировок: без поиска по строке, печати и создания объектов
+    public void changePrice(int symbolId, double newPrice) {
+        double previous = prices.getAndSet(symbolId, newPrice);
+        TickHistory target = history;
+        if (target != null) {
+            recordHistory(target, symbolId, System.currentTimeMillis(), newPrice);
+        }
+        notifyObservers(symbolId, newPrice);
+        ThresholdIndex index = thresholdsById.get(symbolId);
+        if (index != null) {
+            // Поиск O(log n) и уведомление только k трейдеров, чей порог пересечен
+            String stockSymbol = symbols.name(symbolId);
+            int end = index.endCrossed(previous, newPrice);
+            for (int i = index.firstCrossed(previous, newPrice); i < end; i++) {
+                index.observer(i).update(symbolId, stockSymbol, newPrice);
+            }
+        }
+    }
+
+    // Прием пакета котировок: цены обновляются по порядку, каждый наблюдатель получает
+    // свои котировки одним вызовом onBatch
+    public void changePrices(TickBatch batch) {
+        batch.bindSymbols(symbols);
+        BatchFanOut fanOut = fanOuts.get();
+        TickHistory target = history;
+        long now = target != null ? System.currentTimeMillis() : 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int symbolId = batch.symbolId(i);
+            double price = batch.price(i);
+            double previous = prices.getAndSet(symbolId, price);
+            if (target != null) {
+                recordHistory(target, symbolId, now, price);
+            }
+            IObserver[] snapshot = observersById.get(symbolId);
+            if (snapshot != null) {
+                for (IObserver observer : snapshot) {
+                    fanOut.add(observer, symbolId, price, symbols);
+                }
+            }
+            ThresholdIndex index = thresholdsById.get(symbolId);
+            if (index != null) {
+                int end = index.endCrossed(previous, price);
+                for (int j = index.firstCrossed(previous, price); j < end; j++) {
+                    fanOut.add(index.observer(j), symbolId, price, symbols);
+                }
+            }
+        }
+        fanOut.deliver();
+    }
+}
+
+// Период баров OHLC и суффикс файла с барами
+enum BarPeriod {
+    SECOND(1_000L, "1s"),
+    MINUTE(60_000L, "1m"),
+    HOUR(3_600_000L, "1h");
+
+    private final long millis;
+    private final String suffix;
+
+    BarPeriod(long millis, String suffix) {
+        this.millis = millis;
+        this.suffix = suffix;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    // Начало бара, в который попадает момент времени
+    public long barStart(long epochMillis) {
+        return Math.floorDiv(epochMillis, millis) * millis;
+    }
+}
+
+// Получатель котировок из истории
+interface TickVisitor {
+    void tick(long epochMillis, double price);
+}
+
+// Получатель баров из истории
+interface BarVisitor {
+    void bar(long startMillis, double open, double high, double low, double close, long ticks);
+}
+
+// Файл записей фиксированной длины, отображенный в память частями; только дописывание.
+// Данные лежат вне кучи, а число записей хранится в заголовке и переживает перезапуск.
+// Части растут вдвое от маленькой первой до предельной, канал открывается только на время
+// отображения: у тысяч акций не остается ни открытых файлов, ни больших пустых частей
+class MappedRecordFile {
+    private static final int MAGIC = 0x5448524D; // "THRM"
+    private static final int HEADER_SIZE = 16;
+    private static final int FIRST_CHUNK_BITS = 6;
+    private static final int MAX_CHUNK_BITS = 16;
+    private static final int GROWING_CHUNKS = MAX_CHUNK_BITS - FIRST_CHUNK_BITS;
+    // Записей во всех растущих частях: 2^6 + 2^7 + ... + 2^15
+    private static final long GROWING_RECORDS = (1L << MAX_CHUNK_BITS) - (1L << FIRST_CHUNK_BITS);
+
+    private final Path file;
+    private final int recordSize;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private volatile long count;
+
+    public MappedRecordFile(Path file, int recordSize) throws IOException {
+        this.file = file;
+        this.recordSize = recordSize;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(0) == 0) {
+                header.putInt(0, MAGIC).putInt(4, recordSize).putLong(8, 0);
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != recordSize) {
+                throw new IOException("Неизвестный формат файла истории: " + file);
+            }
+            count = header.getLong(8);
+            if (count > 0) {
+                chunks = map(channel, chunks, chunkIndex(count - 1));
+            }
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // Номер части с записью
+    private static int chunkIndex(long index) {
+        if (index < GROWING_RECORDS) {
+            return 63 - Long.numberOfLeadingZeros((index >>> FIRST_CHUNK_BITS) + 1);
+        }
+        return GROWING_CHUNKS + (int) ((index - GROWING_RECORDS) >>> MAX_CHUNK_BITS);
+    }
+
+    // Номер первой записи части
+    private static long chunkStart(int chunkIndex) {
+        if (chunkIndex < GROWING_CHUNKS) {
+            return ((1L << chunkIndex) - 1) << FIRST_CHUNK_BITS;
+        }
+        return GROWING_RECORDS + ((long) (chunkIndex - GROWING_CHUNKS) << MAX_CHUNK_BITS);
+    }
+
+    // Отображение недостающих частей по заданную включительно; файл растет вместе с ними
+    private MappedByteBuffer[] map(FileChannel channel, MappedByteBuffer[] current, int lastChunk)
+            throws IOException {
+        MappedByteBuffer[] grown = Arrays.copyOf(current, lastChunk + 1);
+        for (int i = current.length; i < grown.length; i++) {
+            long records = chunkStart(i + 1) - chunkStart(i);
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + chunkStart(i) * recordSize, records * recordSize);
+        }
+        return grown;
+    }
+
+    // Часть файла с записью; новые части отображаются по мере роста
+    public ByteBuffer chunk(long index) {
+        int chunkIndex = chunkIndex(index);
+        MappedByteBuffer[] current = chunks;
+        if (chunkIndex < current.length) {
+            return current[chunkIndex];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (chunkIndex >= current.length) {
+                // Отображение остается действительным и после закрытия канала
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    current = map(channel, current, chunkIndex);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                chunks = current;
+            }
+            return current[chunkIndex];
+        }
+    }
+
+    // Смещение записи внутри ее части
+    public int offset(long index) {
+        return (int) (index - chunkStart(chunkIndex(index))) * recordSize;
+    }
+
+    // Публикация записей: сначала данные, затем число записей в заголовке и в памяти
+    public void publish(long newCount) {
+        header.putLong(8, newCount);
+        count = newCount;
+    }
+
+    public void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+}
+
+// История одной акции: столбцы времени и цены плюс бары OHLC по каждому периоду.
+// Последний бар каждого периода обновляется на месте по мере прихода котировок
+class SymbolHistory {
+    private static final int BAR_SIZE = 48; // start, open, high, low, close, ticks
+
+    private final MappedRecordFile times;
+    private final MappedRecordFile prices;
+    private final MappedRecordFile[] bars = new MappedRecordFile[BarPeriod.values().length];
+    private long lastTime = Long.MIN_VALUE;
+
+    public SymbolHistory(Path directory, String fileName) throws IOException {
+        times = new MappedRecordFile(directory.resolve(fileName + ".time"), Long.BYTES);
+        prices = new MappedRecordFile(directory.resolve(fileName + ".price"), Double.BYTES);
+        for (BarPeriod period : BarPeriod.values()) {
+            bars[period.ordinal()] = new MappedRecordFile(
+                    directory.resolve(fileName + "." + period.getSuffix()), BAR_SIZE);
+        }
+        // После сбоя между публикациями столбцов доверяем более короткому
+        long count = Math.min(times.count(), prices.count());
+        times.publish(count);
+        prices.publish(count);
+        if (count > 0) {
+            lastTime = times.chunk(count - 1).getLong(times.offset(count - 1));
+        }
+    }
+
+    public long count() {
+        return prices.count();
+    }
+
+    // Время котировок не убывает: более раннее время заменяется временем последней котировки
+    public synchronized void append(long epochMillis, double price) {
+        long time = Math.max(epochMillis, lastTime);
+        long index = times.count();
+        times.chunk(index).putLong(times.offset(index), time);
+        prices.chunk(index).putDouble(prices.offset(index), price);
+        for (BarPeriod period : BarPeriod.values()) {
+            updateBar(bars[period.ordinal()], period.barStart(time), price);
+        }
+        times.publish(index + 1);
+        prices.publish(index + 1);
+        lastTime = time;
+    }
+
+    private static void updateBar(MappedRecordFile file, long start, double price) {
+        long last = file.count() - 1;
+        if (last >= 0) {
+            ByteBuffer chunk = file.chunk(last);
+            int at = file.offset(last);
+            if (chunk.getLong(at) == start) {
+                chunk.putDouble(at + 16, Math.max(chunk.getDouble(at + 16), price));
+                chunk.putDouble(at + 24, Math.min(chunk.getDouble(at + 24), price));
+                chunk.putDouble(at + 32, price);
+                chunk.putLong(at + 40, chunk.getLong(at + 40) + 1);
+                return;
+            }
+        }
+        long index = last + 1;
+        file.chunk(index).putLong(file.offset(index), start)
+                .putDouble(file.offset(index) + 8, price)
+                .putDouble(file.offset(index) + 16, price)
+                .putDouble(file.offset(index) + 24, price)
+                .putDouble(file.offset(index) + 32, price)
+                .putLong(file.offset(index) + 40, 1);
+        file.publish(index + 1);
+    }
+
+    // Первая запись с временем не меньше заданного (двоичный поиск по столбцу)
+    private static long lowerBound(MappedRecordFile file, long count, long time) {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (file.chunk(middle).getLong(file.offset(middle)) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Котировки с временем в [from, to) читаются прямо из отображенных столбцов
+    public void forEachTick(long fromMillis, long toMillis, TickVisitor visitor) {
+        long count = count();
+        for (long i = lowerBound(times, count, fromMillis); i < count; i++) {
+            long time = times.chunk(i).getLong(times.offset(i));
+            if (time >= toMillis) {
+                break;
+            }
+            visitor.tick(time, prices.chunk(i).getDouble(prices.offset(i)));
+        }
+    }
+
+    // Бары с началом в [from, to); последний бар может еще меняться
+    public void forEachBar(BarPeriod period, long fromMillis, long toMillis, BarVisitor visitor) {
+        MappedRecordFile file = bars[period.ordinal()];
+        long count = file.count();
+        for (long i = lowerBound(file, count, period.barStart(fromMillis)); i < count; i++) {
+            ByteBuffer chunk = file.chunk(i);
+            int at = file.offset(i);
+            long start = chunk.getLong(at);
+            if (start >= toMillis) {
+                break;
+            }
+            if (start >= fromMillis) {
+                visitor.bar(start, chunk.getDouble(at + 8), chunk.getDouble(at + 16),
+                        chunk.getDouble(at + 24), chunk.getDouble(at + 32), chunk.getLong(at + 40));
+            }
+        }
+    }
+
+    public void flush() {
+        times.flush();
+        prices.flush();
+        for (MappedRecordFile file : bars) {
+            file.flush();
+        }
+    }
+}
+
+// Хранилище истории котировок в каталоге: по набору файлов на акцию.
+// Подключается к одной бирже, номера акций которой используются для быстрого поиска
+class TickHistory implements AutoCloseable {
+    private final Path directory;
+    private final ConcurrentMap<String, SymbolHistory> bySymbol = new ConcurrentHashMap<>();
+    private final SymbolSlots<SymbolHistory> byId = new SymbolSlots<>();
+
+    public TickHistory(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    // Имя файла из названия акции: символы вне [A-Za-z0-9._-] заменяются кодом
+    private static String fileName(String stockSymbol) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < stockSymbol.length(); i++) {
+            char c = stockSymbol.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || (c == '.' && i > 0)) {
+                name.append(c);
+            } else {
+                name.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return name.toString();
+    }
+
+    // История акции; файлы открываются или создаются при первом обращении
+    public SymbolHistory series(String stockSymbol) {
+        return bySymbol.computeIfAbsent(stockSymbol, symbol -> {
+            try {
+                return new SymbolHistory(directory, fileName(symbol));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    public void record(String stockSymbol, long epochMillis, double price) {
+        series(stockSymbol).append(epochMillis, price);
+    }
+
+    // Быстрый путь биржи: история ищется по номеру акции
+    public void record(int symbolId, String stockSymbol, long epochMillis, double price) {
+        SymbolHistory history = byId.get(symbolId);
+        if (history == null) {
+            history = series(stockSymbol);
+            byId.set(symbolId, history);
+        }
+        history.append(epochMillis, price);
+    }
+
+    public long tickCount(String stockSymbol) {
+        return series(stockSymbol).count();
+    }
+
+    public void forEachTick(String stockSymbol, long fromMillis, long toMillis, TickVisitor visitor) {
+        series(stockSymbol).forEachTick(fromMillis, toMillis, visitor);
+    }
+
+    public void forEachBar(String stockSymbol, BarPeriod period, long fromMillis, long toMillis,
+                           BarVisitor visitor) {
+        series(stockSymbol).forEachBar(period, fromMillis, toMillis, visitor);
+    }
+
+    // Сброс отображенных страниц на диск
+    public void flush() {
+        for (SymbolHistory history : bySymbol.values()) {
+            history.flush();
+        }
+    }
+
+    // Каналы файлов закрыты сразу после отображения, остается сбросить страницы
+    @Override
+    public void close() {
+        flush();
+    }
+}
+
+// Ограниченное кольцо котировок для многих писателей и одного читателя без блокировок.
+// У каждой ячейки свой номер последовательности: писатель занимает позицию через CAS,
+// заполняет ячейку и публикует ее записью номера
+class TickRing {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] symbolIds;
+    private final double[] prices;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // Только поток читателя
+    private volatile long consumed;
+
+    public TickRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        symbolIds = new int[size];
+        prices = new double[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Постановка котировки; при заполненном кольце писатель ждет читателя
+    public void put(int symbolId, double price) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    symbolIds[slot] = symbolId;
+                    prices[slot] = price;
+                    sequences.set(slot, position + 1);
+                    return;
+                }
+            } else if (difference < 0) {
+                Thread.onSpinWait(); // Кольцо заполнено
+            }
+        }
+    }
+
+    // Обработка до limit котировок; возвращается их число
+    public int drain(StockExchange exchange, int limit) {
+        int count = 0;
+        while (count < limit) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            int symbolId = symbolIds[slot];
+            double price = prices[slot];
+            sequences.set(slot, head + mask + 1);
+            head++;
+            count++;
+            exchange.changePrice(symbolId, price);
+        }
+        if (count > 0) {
+            consumed = head;
+        }
+        return count;
+    }
+
+    public boolean isDrained() {
+        return consumed == tail.get();
+    }
+}
+
+// Сегмент биржи: собственные акции и наблюдатели, одно кольцо и один поток-обработчик
+class ExchangeShard {
+    private static final int DRAIN_BATCH = 1024;
+    private static final int IDLE_SPINS = 1000;
+
+    private final StockExchange exchange = new StockExchange();
+    private final TickRing ring;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public ExchangeShard(int index, int ringCapacity) {
+        ring = new TickRing(ringCapacity);
+        worker = new Thread(this::workLoop, "exchange-shard-" + index);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public StockExchange getExchange() {
+        return exchange;
+    }
+
+    public void put(int localSymbolId, double price) {
+        ring.put(localSymbolId, price);
+    }
+
+    public boolean isDrained() {
+        return ring.isDrained();
+    }
+
+    // Поток закреплен за сегментом: порядок котировок каждой акции сохраняется без блокировок.
+    // Без работы он сначала крутится, затем засыпает на короткое время
+    private void workLoop() {
+        int idle = 0;
+        while (running || !ring.isDrained()) {
+            if (ring.drain(exchange, DRAIN_BATCH) > 0) {
+                idle = 0;
+            } else if (++idle < IDLE_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Биржа, разделенная на сегменты по хешу акции. Пропускная способность растет с числом
+// ядер, так как сегменты обрабатывают свои акции параллельно. Номер акции кодирует
+// сегмент и номер внутри него
+class ShardedStockExchange implements ISubject, AutoCloseable {
+    private final ExchangeShard[] shards;
+
+    public ShardedStockExchange(int shardCount, int ringCapacity) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Число сегментов должно быть положительным");
+        }
+        shards = new ExchangeShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ExchangeShard(i, ringCapacity);
+        }
+    }
+
+    private int shardIndex(String stockSymbol) {
+        int hash = stockSymbol.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    // Номер акции для быстрого пути changePrice(int, double)
+    public int symbolId(String stockSymbol) {
+        int shard = shardIndex(stockSymbol);
+        return shards[shard].getExchange().symbolId(stockSymbol) * shards.length + shard;
+    }
+
+    @Override
+    public void subscribe(IObserver observer, String stockSymbol) {
+        shards[shardIndex(stockSymbol)].getExchange().subscribe(observer, stockSymbol);
+    }
+
+    @Override
+    public void unsubscribe(IObserver observer, String stockSymbol) {
+        shards[shardIndex(stockSymbol)].getExchange().unsubscribe(observer, stockSymbol);
+    }
+
+    // Уведомление идет через кольцо сегмента, как и изменение цены, чтобы сохранить порядок
+    @Override
+    public void notifyObservers(String stockSymbol, double price) {
+        changePrice(stockSymbol, price);
+    }
+
+    public void changePrice(String stockSymbol, double newPrice) {
+        changePrice(symbolId(stockSymbol), newPrice);
+    }
+
+    public void changePrice(int symbolId, double newPrice) {
+        shards[symbolId % shards.length].put(symbolId / shards.length, newPrice);
+    }
+
+    public double lastPrice(String stockSymbol) {
+        return shards[shardIndex(stockSymbol)].getExchange().lastPrice(stockSymbol);
+    }
+
+    // Ожидание обработки всех принятых котировок
+    public void awaitDrained() {
+        for (ExchangeShard shard : shards) {
+            while (!shard.isDrained()) {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    // Остановка потоков после обработки принятых котировок
+    @Override
+    public void close() {
+        for (ExchangeShard shard : shards) {
+            shard.close();
+        }
+    }
+}
+
+// Пакет котировок в столбцовом виде: номера акций и цены. Объект рассчитан на повторное использование
+class TickBatch {
+    private int[] symbolIds;
+    private double[] prices;
+    private int size;
+    private SymbolTable symbols;
+
+    public TickBatch(int capacity) {
+        symbolIds = new int[Math.max(1, capacity)];
+        prices = new double[Math.max(1, capacity)];
+    }
+
+    public void add(int symbolId, double price) {
+        if (size == symbolIds.length) {
+            symbolIds = Arrays.copyOf(symbolIds, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+        }
+        symbolIds[size] = symbolId;
+        prices[size] = price;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int symbolId(int index) {
+        return symbolIds[index];
+    }
+
+    public double price(int index) {
+        return prices[index];
+    }
+
+    // Название акции; доступно в пакетах, прошедших через биржу
+    public String symbol(int index) {
+        return symbols.name(symbolIds[index]);
+    }
+
+    void bindSymbols(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+}
+
+// Раскладка пакета по наблюдателям; у каждого потока ленты своя, буферы переиспользуются
+class BatchFanOut {
+    private static final int MAX_CACHED_OBSERVERS = 4096;
+
+    private final IdentityHashMap<IObserver, TickBatch> batches = new IdentityHashMap<>();
+    private final List<IObserver> touched = new ArrayList<>();
+
+    void add(IObserver observer, int symbolId, double price, SymbolTable symbols) {
+        TickBatch batch = batches.get(observer);
+        if (batch == null) {
+            batch = new TickBatch(16);
+            batch.bindSymbols(symbols);
+            batches.put(observer, batch);
+        }
+        if (batch.size() == 0) {
+            touched.add(observer);
+        }
+        batch.add(symbolId, price);
+    }
+
+    // Один вызов onBatch на наблюдателя; пакет действителен только во время вызова
+    void deliver() {
+        try {
+            for (IObserver observer : touched) {
+                observer.onBatch(batches.get(observer));
+            }
+        } finally {
+            for (IObserver observer : touched) {
+                batches.get(observer).clear();
+            }
+            touched.clear();
+            if (batches.size() > MAX_CACHED_OBSERVERS) {
+                batches.clear(); // Буферы отписавшихся наблюдателей не копятся
+            }
+        }
+    }
+}
+
+// Пороговые подписки одной акции: пороги по возрастанию и их наблюдатели.
+// Объект неизменяемый и заменяется копией при изменении подписок
+class ThresholdIndex {
+    private final double[] thresholds;
+    private final IObserver[] observers;
+
+    ThresholdIndex(double[] thresholds, IObserver[] observers) {
+        this.thresholds = thresholds;
+        this.observers = observers;
+    }
+
+    ThresholdIndex with(double threshold, IObserver observer) {
+        int position = upperBound(threshold);
+        double[] newThresholds = new double[thresholds.length + 1];
+        IObserver[] newObservers = new IObserver[observers.length + 1];
+        System.arraycopy(thresholds, 0, newThresholds, 0, position);
+        System.arraycopy(observers, 0, newObservers, 0, position);
+        newThresholds[position] = threshold;
+        newObservers[position] = observer;
+        System.arraycopy(thresholds, position, newThresholds, position + 1, thresholds.length - position);
+        System.arraycopy(observers, position, newObservers, position + 1, observers.length - position);
+        return new ThresholdIndex(newThresholds, newObservers);
+    }
+
+    // Копия без порогов наблюдателя; null вместо пустого индекса
+    ThresholdIndex without(IObserver observer) {
+        int kept = 0;
+        double[] newThresholds = new double[thresholds.length];
+        IObserver[] newObservers = new IObserver[observers.length];
+        for (int i = 0; i < observers.length; i++) {
+            if (!observers[i].equals(observer)) {
+                newThresholds[kept] = thresholds[i];
+                newObservers[kept] = observers[i];
+                kept++;
+            }
+        }
+        if (kept == 0) {
+            return null;
+        }
+        return new ThresholdIndex(Arrays.copyOf(newThresholds, kept), Arrays.copyOf(newObservers, kept));
+    }
+
+    // Цена пересекает порог t, когда (previous < t) != (price < t), то есть t лежит
+    // в (min, max]. Первая цена акции пересекает все пороги
+    int firstCrossed(double previous, double price) {
+        return Double.isNaN(previous) ? 0 : upperBound(Math.min(previous, price));
+    }
+
+    int endCrossed(double previous, double price) {
+        return Double.isNaN(previous) ? thresholds.length : upperBound(Math.max(previous, price));
+    }
+
+    IObserver observer(int index) {
+        return observers[index];
+    }
+
+    int size() {
+        return observers.length;
+    }
+
+    // Первый порог, строго больший value
+    private int upperBound(double value) {
+        int lo = 0;
+        int hi = thresholds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (thresholds[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+// Уведомление в очереди асинхронной доставки
+class PriceUpdate {
+    final String stockSymbol;
+    final double price;
+
+    PriceUpdate(String stockSymbol, double price) {
+        this.stockSymbol = stockSymbol;
+        this.price = price;
+    }
+}
+
+// Асинхронная доставка: у наблюдателя своя ограниченная очередь и исполнитель, поэтому
+// медленный наблюдатель не задерживает биржу. При склейке в очереди хранится только
+// последняя цена каждой акции
+class AsyncObserver implements IObserver {
+    private static final int DRAIN_BATCH = 256;
+
+    private final IObserver delegate;
+    private final int capacity;
+    private final boolean conflate;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final ConcurrentLinkedQueue<PriceUpdate> updates = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> pendingSymbols = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Double> latestPrices = new ConcurrentHashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private int subscriptions; // Меняется под блокировкой подписок биржи
+    private volatile boolean closed;
+
+    public AsyncObserver(IObserver delegate, int capacity, boolean conflate) {
+        this(delegate, capacity, conflate, singleThreadExecutor(), true);
+    }
+
+    public AsyncObserver(IObserver delegate, int capacity, boolean conflate, Executor executor) {
+        this(delegate, capacity, conflate, executor, false);
+    }
+
+    private AsyncObserver(IObserver delegate, int capacity, boolean conflate, Executor executor,
+                          boolean ownsExecutor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Емкость очереди должна быть положительной");
+        }
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.conflate = conflate;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    // Поток создается по требованию и завершается после простоя
+    private static ExecutorService singleThreadExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public IObserver getDelegate() {
+        return delegate;
+    }
+
+    // Подписки биржи на этого наблюдателя
+    void retain() {
+        subscriptions++;
+    }
+
+    // true, если снята последняя подписка
+    boolean release(int count) {
+        subscriptions -= count;
+        return subscriptions <= 0;
+    }
+
+    @Override
+    public void update(String stockSymbol, double price) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        if (conflate) {
+            if (latestPrices.put(stockSymbol, price) != null) {
+                conflated.increment(); // Акция уже в очереди, цена просто заменена
+                return;
+            }
+            if (!reserve()) {
+                // Удаляется только своя цена. Если другой поток уже склеил с ней более новую,
+                // ее тоже некому доставить: она убирается и считается отброшенной
+                if (!latestPrices.remove(stockSymbol, price)) {
+                    latestPrices.remove(stockSymbol);
+                    dropped.increment();
+                }
+                return;
+            }
+            pendingSymbols.offer(stockSymbol);
+        } else {
+            if (!reserve()) {
+                return;
+            }
+            updates.offer(new PriceUpdate(stockSymbol, price));
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false); // Исполнитель остановлен при закрытии
+        }
+    }
+
+    private boolean reserve() {
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Последовательная доставка; после пачки исполнитель освобождается для других задач
+    private void drain() {
+        for (int processed = 0; processed < DRAIN_BATCH; processed++) {
+            if (closed || !deliverNext()) {
+                scheduled.set(false);
+                if (closed || depth.get() == 0 || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+        schedule();
+    }
+
+    private boolean deliverNext() {
+        String stockSymbol;
+        double price;
+        if (conflate) {
+            stockSymbol = pendingSymbols.poll();
+            if (stockSymbol == null) {
+                return false;
+            }
+            price = latestPrices.remove(stockSymbol);
+        } else {
+            PriceUpdate update = updates.poll();
+            if (update == null) {
+                return false;
+            }
+            stockSymbol = update.stockSymbol;
+            price = update.price;
+        }
+        depth.decrementAndGet();
+        try {
+            delegate.update(stockSymbol, price);
+            delivered.increment();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getConflatedCount() {
+        return conflated.sum();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Остановка доставки: новые цены отбрасываются, собственный поток завершается.
+    // Биржа закрывает наблюдателя после его последней отписки
+    public void close() {
+        closed = true;
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
+
+// Записанная лента котировок в столбцовом виде; акции переведены в номера биржи.
+// Файл CSV "время_нс,акция,цена" или компактный двоичный формат
+class TickTape {
+    private static final int BINARY_MAGIC = 0x5449434B;
+
+    private long[] timestamps = new long[1024];
+    private int[] symbolIds = new int[1024];
+    private double[] prices = new double[1024];
+    private int size;
+
+    public void add(long timestampNanos, int symbolId, double price) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            symbolIds = Arrays.copyOf(symbolIds, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+        }
+        timestamps[size] = timestampNanos;
+        symbolIds[size] = symbolId;
+        prices[size] = price;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long timestamp(int index) {
+        return timestamps[index];
+    }
+
+    public int symbolId(int index) {
+        return symbolIds[index];
+    }
+
+    public double price(int index) {
+        return prices[index];
+    }
+
+    // Загрузка ленты; формат определяется по заголовку файла
+    public static TickTape load(Path file, StockExchange exchange) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] header = in.readNBytes(Integer.BYTES);
+            if (header.length == Integer.BYTES && ByteBuffer.wrap(header).getInt() == BINARY_MAGIC) {
+                return loadBinary(in, exchange);
+            }
+        }
+        return loadCsv(file, exchange);
+    }
+
+    private static TickTape loadCsv(Path file, StockExchange exchange) throws IOException {
+        TickTape tape = new TickTape();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 3 || parts[0].isEmpty() || !Character.isDigit(parts[0].charAt(0))) {
+                    continue; // Заголовок или пустая строка
+                }
+                tape.add(Long.parseLong(parts[0].trim()), exchange.symbolId(parts[1].trim()),
+                        Double.parseDouble(parts[2].trim()));
+            }
+        }
+        return tape;
+    }
+
+    private static TickTape loadBinary(DataInputStream in, StockExchange exchange) throws IOException {
+        int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = exchange.symbolId(in.readUTF());
+        }
+        int count = in.readInt();
+        TickTape tape = new TickTape();
+        for (int i = 0; i < count; i++) {
+            tape.add(in.readLong(), ids[in.readInt()], in.readDouble());
+        }
+        return tape;
+    }
+
+    // Двоичный формат: словарь названий, затем записи по 20 байт
+    public void saveBinary(Path file, StockExchange exchange) throws IOException {
+        int symbolCount = 0;
+        for (int i = 0; i < size; i++) {
+            symbolCount = Math.max(symbolCount, symbolIds[i] + 1);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(symbolCount);
+            for (int i = 0; i < symbolCount; i++) {
+                out.writeUTF(exchange.symbolName(i));
+            }
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(timestamps[i]);
+                out.writeInt(symbolIds[i]);
+                out.writeDouble(prices[i]);
+            }
+        }
+    }
+}
+
+// Гистограмма задержек с логарифмическими интервалами: 32 деления на каждую степень двойки
+// (точность около 3%). Запись без блокировок из любых потоков
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) | (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    // Верхняя граница интервала
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lower = (long) (SUB_COUNT | (bucket & (SUB_COUNT - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Значение, не меньше которого percentile процентов замеров
+    public long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    // Распределение по степеням двойки в микросекундах
+    public void print() {
+        long count = total.sum();
+        for (int power = 0; power < 64 - SUB_BITS + 1; power++) {
+            long inPower = 0;
+            for (int i = power << SUB_BITS; i < (power + 1) << SUB_BITS; i++) {
+                inPower += counts.get(i);
+            }
+            if (inPower > 0) {
+                long upper = upperBound(((power + 1) << SUB_BITS) - 1);
+                int bar = (int) (50 * inPower / count);
+                System.out.printf("  <= %10.3f мкс | %-50s %d%n", upper / 1000.0, "#".repeat(Math.max(1, bar)), inPower);
+            }
+        }
+    }
+}
+
+// Наблюдатель-замерщик: задержка от публикации котировки до получения наблюдателем.
+// Время публикации хранится для каждой котировки ленты. Доставленная котировка ищется
+// по цене среди опубликованных котировок своей акции, начиная с первой недоставленной.
+// При склейке и сбросах берется самая ранняя опубликованная котировка с этой ценой,
+// поэтому задержка не занижается более поздней публикацией
+class LatencyProbe implements IObserver {
+    private final StockExchange exchange;
+    private final TickTape tape;
+    private final AtomicLongArray publishNanos; // По номеру котировки в ленте; 0 - не опубликована
+    private final LatencyHistogram histogram;
+    private final int[] firstTick; // Первая котировка акции в ленте или -1
+    private final int[] nextTick; // Следующая котировка той же акции или -1
+    private final int[] cursor; // Первая недоставленная котировка акции; доставка замерщику последовательна
+
+    public LatencyProbe(StockExchange exchange, TickTape tape, AtomicLongArray publishNanos,
+                        LatencyHistogram histogram, int symbolCount) {
+        this.exchange = exchange;
+        this.tape = tape;
+        this.publishNanos = publishNanos;
+        this.histogram = histogram;
+        firstTick = new int[symbolCount];
+        nextTick = new int[tape.size()];
+        Arrays.fill(firstTick, -1);
+        for (int i = tape.size() - 1; i >= 0; i--) {
+            nextTick[i] = firstTick[tape.symbolId(i)];
+            firstTick[tape.symbolId(i)] = i;
+        }
+        cursor = firstTick.clone();
+    }
+
+    // Начало нового прогона ленты
+    public void reset() {
+        System.arraycopy(firstTick, 0, cursor, 0, cursor.length);
+    }
+
+    @Override
+    public void update(String stockSymbol, double price) {
+        update(exchange.symbolId(stockSymbol), stockSymbol, price); // Путь через асинхронную очередь
+    }
+
+    @Override
+    public void update(int symbolId, String stockSymbol, double price) {
+        long now = System.nanoTime();
+        if (symbolId >= cursor.length) {
+            return;
+        }
+        for (int tick = cursor[symbolId]; tick >= 0; tick = nextTick[tick]) {
+            long published = publishNanos.get(tick);
+            if (published == 0) {
+                return; // Цена не из ленты этого прогона
+            }
+            if (Double.compare(tape.price(tick), price) == 0) {
+                cursor[symbolId] = nextTick[tick];
+                histogram.record(now - published);
+                return;
+            }
+        }
+    }
+}
+
+// Итог воспроизведения
+class ReplayReport {
+    private final int ticks;
+    private final long elapsedNanos;
+    private final LatencyHistogram latency;
+
+    public ReplayReport(int ticks, long elapsedNanos, LatencyHistogram latency) {
+        this.ticks = ticks;
+        this.elapsedNanos = elapsedNanos;
+        this.latency = latency;
+    }
+
+    public double getTicksPerSecond() {
+        return ticks * 1e9 / Math.max(1, elapsedNanos);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public void print() {
+        System.out.printf("Котировок: %d за %.3f с, %.0f котировок/с%n", ticks, elapsedNanos / 1e9, getTicksPerSecond());
+        System.out.printf("Задержка, мкс: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, макс %.3f, среднее %.3f (замеров %d)%n",
+                latency.percentile(50) / 1000.0, latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+                latency.percentile(99.9) / 1000.0, latency.getMax() / 1000.0, latency.getMean() / 1000.0,
+                latency.getCount());
+        latency.print();
+    }
+}
+
+// Воспроизведение ленты через быстрый путь биржи: с максимальной скоростью или в темпе записи
+class TickReplay {
+    private final StockExchange exchange;
+    private final TickTape tape;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLongArray publishNanos; // Время публикации каждой котировки ленты
+    private final int symbolCount;
+    private LatencyProbe probe;
+
+    public TickReplay(StockExchange exchange, TickTape tape) {
+        this.exchange = exchange;
+        this.tape = tape;
+        int symbols = 0;
+        for (int i = 0; i < tape.size(); i++) {
+            symbols = Math.max(symbols, tape.symbolId(i) + 1);
+        }
+        this.symbolCount = symbols;
+        this.publishNanos = new AtomicLongArray(tape.size());
+    }
+
+    // Подписка замерщика на все акции ленты
+    public IObserver subscribeProbe() {
+        if (probe == null) {
+            probe = new LatencyProbe(exchange, tape, publishNanos, latency, symbolCount);
+            for (int i = 0; i < symbolCount; i++) {
+                exchange.subscribe(probe, exchange.symbolName(i));
+            }
+        }
+        return probe;
+    }
+
+    // speed 0 - максимальная скорость, 1 - темп записи, 2 - вдвое быстрее и т.д.
+    // При асинхронной доставке часть замеров может прийти после возврата
+    public ReplayReport run(double speed) {
+        latency.reset();
+        if (tape.size() == 0) {
+            return new ReplayReport(0, 0, latency);
+        }
+        for (int i = 0; i < tape.size(); i++) {
+            publishNanos.set(i, 0);
+        }
+        if (probe != null) {
+            probe.reset();
+        }
+        long firstTimestamp = tape.timestamp(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < tape.size(); i++) {
+            if (speed > 0) {
+                waitUntil(start + (long) ((tape.timestamp(i) - firstTimestamp) / speed));
+            }
+            publishNanos.set(i, System.nanoTime());
+            exchange.changePrice(tape.symbolId(i), tape.price(i));
+        }
+        return new ReplayReport(tape.size(), System.nanoTime() - start, latency);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100_000) {
+                LockSupport.parkNanos(remaining - 50_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
     }
 }
 
@@ -67,6 +1699,10 @@ class AutomatedTrader implements IObserver {
         this.threshold = threshold;
     }
 
+    public double getThreshold() {
+        return threshold;
+    }
+
     @Override
     public void update(String stockSymbol, double price) {
         System.out.println("Автоматический трейдер " + name + " получает обновление: " + stockSymbol + " - новая цена: " + price);
@@ -79,16 +1715,24 @@ class AutomatedTrader implements IObserver {
 }
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // Нагрузочный прогон: Main <файл ленты> [скорость]
+        if (args.length > 0) {
+            replay(Paths.get(args[0]), args.length > 1 ? Double.parseDouble(args[1]) : 0);
+            return;
+        }
+
         StockExchange stockExchange = new StockExchange();
 
         Trader trader1 = new Trader("Алексей");
         Trader trader2 = new Trader("Мария");
         AutomatedTrader autoTrader = new AutomatedTrader("Робот-1", 150.0);
+        AutomatedTrader thresholdTrader = new AutomatedTrader("Робот-2", 142.0);
 
         stockExchange.subscribe(trader1, "AAPL");
         stockExchange.subscribe(trader2, "AAPL");
         stockExchange.subscribe(autoTrader, "TSLA");
+        stockExchange.subscribeThreshold(thresholdTrader, "TSLA"); // Только при пересечении 142
 
         stockExchange.changePrice("AAPL", 145.0);
         stockExchange.changePrice("TSLA", 140.0);
@@ -98,4 +1742,12 @@ public class Main {
         stockExchange.changePrice("AAPL", 155.0);
         stockExchange.changePrice("TSLA", 135.0);
     }
+
+    private static void replay(Path tickFile, double speed) throws IOException {
+        StockExchange stockExchange = new StockExchange();
+        TickTape tape = TickTape.load(tickFile, stockExchange);
+        TickReplay replay = new TickReplay(stockExchange, tape);
+        replay.subscribeProbe();
+        replay.run(speed).print();
+    }
 }
@@ -1,56 +1,794 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
 interface ICostCalculationStrategy {
     double calculateCost(double distance, int passengers, String serviceClass);
+
+    // Пакетный расчет по столбцам: costs[i] для первых count поездок
+    default void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                                double[] costs, int count) {
+        calculateCosts(distances, passengers, serviceClassCodes, costs, 0, count);
+    }
+
+    // Расчет поездок с номерами [from, to). Реализация по умолчанию считает по одной поездке
+    default void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                                double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) {
+            costs[i] = calculateCost(distances[i], passengers[i], ServiceClass.name(serviceClassCodes[i]));
+        }
+    }
+
+    // Версия правил расчета; меняется, когда те же поездки начинают стоить иначе
+    default long getVersion() {
+        return 0;
+    }
+
+    // Ключ вида транспорта в кэше расчетов: стратегии с равными ключами считают одинаково.
+    // По умолчанию - сама стратегия, так как экземпляры одного класса могут считать по-разному;
+    // ключ не должен меняться за время жизни стратегии
+    default Object getCacheKey() {
+        return this;
+    }
+}
+
+// Коды классов обслуживания для пакетного расчета
+final class ServiceClass {
+    public static final byte ECONOMY = 0;
+    public static final byte BUSINESS = 1;
+    public static final int COUNT = 2;
+
+    private ServiceClass() {
+    }
+
+    public static byte code(String serviceClass) {
+        return serviceClass.equals("business") ? BUSINESS : ECONOMY;
+    }
+
+    // Строгий разбор названия класса, например из файла тарифов
+    public static byte parse(String serviceClass) {
+        for (byte code = 0; code < COUNT; code++) {
+            if (name(code).equals(serviceClass)) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("Неизвестный класс обслуживания: " + serviceClass);
+    }
+
+    public static String name(byte code) {
+        switch (code) {
+            case ECONOMY:
+                return "economy";
+            case BUSINESS:
+                return "business";
+            default:
+                throw new IllegalArgumentException("Неизвестный код класса обслуживания: " + code);
+        }
+    }
+}
+
+// Пакет поездок в столбцовом виде
+class TripBatch {
+    private double[] distances = new double[16];
+    private int[] passengers = new int[16];
+    private byte[] serviceClassCodes = new byte[16];
+    private int size;
+
+    public void add(double distance, int passengerCount, String serviceClass) {
+        if (size == distances.length) {
+            distances = Arrays.copyOf(distances, size * 2);
+            passengers = Arrays.copyOf(passengers, size * 2);
+            serviceClassCodes = Arrays.copyOf(serviceClassCodes, size * 2);
+        }
+        distances[size] = distance;
+        passengers[size] = passengerCount;
+        serviceClassCodes[size] = ServiceClass.code(serviceClass);
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double[] getDistances() {
+        return distances;
+    }
+
+    public int[] getPassengers() {
+        return passengers;
+    }
+
+    public byte[] getServiceClassCodes() {
+        return serviceClassCodes;
+    }
 }
 
 class AirplaneCostCalculation implements ICostCalculationStrategy {
+    private static final double BASE_PRICE = 0.1; // Цена за километр
+    private static final double[] CLASS_MULTIPLIERS = {1.0, 1.5}; // По кодам ServiceClass: бизнес-класс +50%
+
     @Override
     public double calculateCost(double distance, int passengers, String serviceClass) {
-        double basePrice = 0.1; // Цена за километр
-        double cost = basePrice * distance * passengers;
+        // Множитель класса из той же таблицы, что и в пакетном расчете
+        return BASE_PRICE * distance * passengers * CLASS_MULTIPLIERS[ServiceClass.code(serviceClass)];
+    }
 
-        if (serviceClass.equals("business")) {
-            cost *= 1.5; // Увеличение цены на 50% для бизнес-класса
+    // Цикл без виртуальных вызовов и сравнения строк: множитель класса берется из таблицы
+    @Override
+    public void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                               double[] costs, int from, int to) {
+        double[] multipliers = CLASS_MULTIPLIERS;
+        for (int i = from; i < to; i++) {
+            costs[i] = BASE_PRICE * distances[i] * passengers[i] * multipliers[serviceClassCodes[i]];
         }
-        return cost;
+    }
+
+    // Стратегия без состояния: все экземпляры считают одинаково
+    @Override
+    public Object getCacheKey() {
+        return getClass();
     }
 }
 
 class TrainCostCalculation implements ICostCalculationStrategy {
+    private static final double BASE_PRICE = 0.05; // Цена за километр
+    private static final double[] CLASS_MULTIPLIERS = {1.0, 1.2}; // По кодам ServiceClass: бизнес-класс +20%
+
     @Override
     public double calculateCost(double distance, int passengers, String serviceClass) {
-        double basePrice = 0.05; // Цена за километр
-        double cost = basePrice * distance * passengers;
+        // Множитель класса из той же таблицы, что и в пакетном расчете
+        return BASE_PRICE * distance * passengers * CLASS_MULTIPLIERS[ServiceClass.code(serviceClass)];
+    }
 
-        if (serviceClass.equals("business")) {
-            cost *= 1.2; // Увеличение цены на 20% для бизнес-класса
+    @Override
+    public void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                               double[] costs, int from, int to) {
+        double[] multipliers = CLASS_MULTIPLIERS;
+        for (int i = from; i < to; i++) {
+            costs[i] = BASE_PRICE * distances[i] * passengers[i] * multipliers[serviceClassCodes[i]];
         }
-        return cost;
+    }
+
+    // Стратегия без состояния: все экземпляры считают одинаково
+    @Override
+    public Object getCacheKey() {
+        return getClass();
     }
 }
 
 class BusCostCalculation implements ICostCalculationStrategy {
+    private static final double BASE_PRICE = 0.03; // Цена за километр
+    private static final double[] CLASS_MULTIPLIERS = {1.0, 1.1}; // По кодам ServiceClass: бизнес-класс +10%
+
     @Override
     public double calculateCost(double distance, int passengers, String serviceClass) {
-        double basePrice = 0.03; // Цена за километр
-        double cost = basePrice * distance * passengers;
+        // Множитель класса из той же таблицы, что и в пакетном расчете
+        return BASE_PRICE * distance * passengers * CLASS_MULTIPLIERS[ServiceClass.code(serviceClass)];
+    }
+
+    @Override
+    public void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                               double[] costs, int from, int to) {
+        double[] multipliers = CLASS_MULTIPLIERS;
+        for (int i = from; i < to; i++) {
+            costs[i] = BASE_PRICE * distances[i] * passengers[i] * multipliers[serviceClassCodes[i]];
+        }
+    }
+
+    // Стратегия без состояния: все экземпляры считают одинаково
+    @Override
+    public Object getCacheKey() {
+        return getClass();
+    }
+}
+
+// Тариф одного вида транспорта, скомпилированный в плоские таблицы
+class ModeTariff {
+    private final double baseRate;
+    private final double[] classMultipliers; // По кодам ServiceClass
+    private final double[] bandStarts; // Нижние границы диапазонов расстояния по возрастанию
+    private final double[] bandMultipliers;
+    private final double[] passengerMultipliers; // По числу пассажиров; дальше последний элемент
+
+    public ModeTariff(double baseRate, double[] classMultipliers, double[] bandStarts,
+                      double[] bandMultipliers, double[] passengerMultipliers) {
+        this.baseRate = baseRate;
+        this.classMultipliers = classMultipliers;
+        this.bandStarts = bandStarts;
+        this.bandMultipliers = bandMultipliers;
+        this.passengerMultipliers = passengerMultipliers;
+    }
+
+    public double getBaseRate() {
+        return baseRate;
+    }
+
+    // Множитель диапазона, в который попадает расстояние
+    private double bandMultiplier(double distance) {
+        double multiplier = 1.0;
+        for (int i = 0; i < bandStarts.length && bandStarts[i] <= distance; i++) {
+            multiplier = bandMultipliers[i];
+        }
+        return multiplier;
+    }
+
+    private double passengerMultiplier(int passengers) {
+        double[] table = passengerMultipliers;
+        return table[Math.max(0, Math.min(passengers, table.length - 1))];
+    }
+
+    public double cost(double distance, int passengers, byte serviceClassCode) {
+        return baseRate * distance * passengers * classMultipliers[serviceClassCode]
+                * bandMultiplier(distance) * passengerMultiplier(passengers);
+    }
+
+    public void costs(double[] distances, int[] passengers, byte[] serviceClassCodes, double[] costs,
+                      int from, int to) {
+        for (int i = from; i < to; i++) {
+            costs[i] = cost(distances[i], passengers[i], serviceClassCodes[i]);
+        }
+    }
+}
+
+// Неизменяемый набор тарифов по видам транспорта. Формат файла - строки ключ=значение:
+//   airplane.baseRate=0.1
+//   airplane.class.business=1.5
+//   airplane.distanceBands=0:1.0,1000:0.9      (от км : множитель)
+//   airplane.passengerDiscounts=1:1.0,5:0.95   (от пассажиров : множитель)
+class Tariff {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final Map<String, ModeTariff> modes;
+    private final long version;
+
+    private Tariff(Map<String, ModeTariff> modes, long version) {
+        this.modes = modes;
+        this.version = version;
+    }
+
+    // Номер версии растет с каждой загрузкой; по нему можно сбрасывать кэши расчетов
+    public long getVersion() {
+        return version;
+    }
 
-        if (serviceClass.equals("business")) {
-            cost *= 1.1; // Увеличение цены на 10% для бизнес-класса
+    public ModeTariff mode(String mode) {
+        ModeTariff tariff = modes.get(mode);
+        if (tariff == null) {
+            throw new IllegalArgumentException("Нет тарифа для вида транспорта: " + mode);
         }
+        return tariff;
+    }
+
+    public Set<String> getModes() {
+        return modes.keySet();
+    }
+
+    public static Tariff parse(BufferedReader reader) throws IOException {
+        Map<String, Double> baseRates = new HashMap<>();
+        Map<String, double[]> classes = new HashMap<>();
+        Map<String, double[][]> bands = new HashMap<>();
+        Map<String, double[][]> discounts = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("=", 2);
+            int dot = parts[0].indexOf('.');
+            if (parts.length < 2 || dot <= 0) {
+                throw new IOException("Неверная строка тарифа: " + line);
+            }
+            String mode = parts[0].substring(0, dot).trim();
+            String key = parts[0].substring(dot + 1).trim();
+            String value = parts[1].trim();
+            try {
+                if (key.equals("baseRate")) {
+                    baseRates.put(mode, Double.parseDouble(value));
+                } else if (key.startsWith("class.")) {
+                    double[] multipliers = classes.computeIfAbsent(mode, m -> filled(ServiceClass.COUNT, 1.0));
+                    multipliers[ServiceClass.parse(key.substring("class.".length()))] = Double.parseDouble(value);
+                } else if (key.equals("distanceBands")) {
+                    bands.put(mode, parseSteps(value));
+                } else if (key.equals("passengerDiscounts")) {
+                    discounts.put(mode, parseSteps(value));
+                } else {
+                    throw new IOException("Неизвестный ключ тарифа: " + parts[0]);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Неверная строка тарифа: " + line, e);
+            }
+        }
+        Map<String, ModeTariff> modes = new HashMap<>();
+        for (Map.Entry<String, Double> entry : baseRates.entrySet()) {
+            String mode = entry.getKey();
+            double[][] band = bands.getOrDefault(mode, new double[][]{{}, {}});
+            modes.put(mode, new ModeTariff(entry.getValue(),
+                    classes.getOrDefault(mode, filled(ServiceClass.COUNT, 1.0)),
+                    band[0], band[1],
+                    passengerTable(discounts.getOrDefault(mode, new double[][]{{}, {}}))));
+        }
+        return new Tariff(modes, VERSIONS.incrementAndGet());
+    }
+
+    public static Tariff load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            return parse(reader);
+        }
+    }
+
+    private static double[] filled(int length, double value) {
+        double[] array = new double[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    // Ступени "граница:множитель,..." по возрастанию границ: {границы, множители}
+    private static double[][] parseSteps(String value) {
+        String[] items = value.split(",");
+        double[][] steps = new double[2][items.length];
+        for (int i = 0; i < items.length; i++) {
+            String[] pair = items[i].split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Ожидается граница:множитель: " + items[i]);
+            }
+            steps[0][i] = Double.parseDouble(pair[0].trim());
+            steps[1][i] = Double.parseDouble(pair[1].trim());
+            if (i > 0 && steps[0][i] <= steps[0][i - 1]) {
+                throw new IllegalArgumentException("Границы должны возрастать: " + value);
+            }
+        }
+        return steps;
+    }
+
+    // Таблица множителей по числу пассажиров до последней границы включительно
+    private static double[] passengerTable(double[][] steps) {
+        int length = steps[0].length == 0 ? 1 : (int) steps[0][steps[0].length - 1] + 1;
+        double[] table = filled(length, 1.0);
+        for (int i = 0; i < steps[0].length; i++) {
+            Arrays.fill(table, Math.max(0, (int) steps[0][i]), length, steps[1][i]);
+        }
+        return table;
+    }
+}
+
+// Держатель текущего тарифа: новый тариф подменяется атомарно, расчеты не прерываются
+class TariffEngine {
+    private volatile Tariff tariff;
+
+    public TariffEngine(Tariff tariff) {
+        this.tariff = tariff;
+    }
+
+    public Tariff current() {
+        return tariff;
+    }
+
+    public void swap(Tariff newTariff) {
+        tariff = newTariff;
+    }
+
+    // Загрузка и компиляция файла; при ошибке остается прежний тариф
+    public void reload(Path file) throws IOException {
+        swap(Tariff.load(file));
+    }
+}
+
+// Стратегия расчета по текущему тарифу движка для одного вида транспорта
+class TariffCostCalculation implements ICostCalculationStrategy {
+    private final TariffEngine engine;
+    private final String mode;
+    private final Object cacheKey;
+
+    public TariffCostCalculation(TariffEngine engine, String mode) {
+        this.engine = engine;
+        this.mode = mode;
+        this.cacheKey = Arrays.asList(engine, mode);
+    }
+
+    public TariffEngine getEngine() {
+        return engine;
+    }
+
+    // Версия текущего тарифа: после подмены тарифа прежние расчеты в кэшах не используются
+    @Override
+    public long getVersion() {
+        return engine.current().getVersion();
+    }
+
+    // Вид транспорта одного движка тарифов
+    @Override
+    public Object getCacheKey() {
+        return cacheKey;
+    }
+
+    @Override
+    public double calculateCost(double distance, int passengers, String serviceClass) {
+        return engine.current().mode(mode).cost(distance, passengers, ServiceClass.code(serviceClass));
+    }
+
+    // Весь пакет считается по одному тарифу, даже если его подменяют во время расчета
+    @Override
+    public void calculateCosts(double[] distances, int[] passengers, byte[] serviceClassCodes,
+                               double[] costs, int from, int to) {
+        engine.current().mode(mode).costs(distances, passengers, serviceClassCodes, costs, from, to);
+    }
+}
+
+// Ограниченный кэш расчетов с вытеснением давно не использованных (LRU).
+// Ключ (вид транспорта, расстояние, пассажиры, класс) упакован в два long: биты расстояния
+// и номер вида транспорта с числом пассажиров и кодом класса. Запись помнит версию стратегии,
+// при которой посчитана; запись другой версии считается промахом и пересчитывается.
+// Записи, хеш-таблица с открытой адресацией и список LRU хранятся в примитивных массивах.
+// Не потокобезопасен, как и TravelBookingContext
+class QuoteCache {
+    private static final int MAX_STRATEGIES = 1 << 23; // Номер вида транспорта занимает биты 40-62
+
+    private final int capacity;
+    private final long[] distanceKeys;
+    private final long[] tripKeys;
+    private final long[] versions;
+    private final double[] costs;
+    private final int[] newer; // Соседи в списке LRU по номеру записи
+    private final int[] older;
+    private final int[] slots; // Номер записи + 1; 0 - пустая ячейка
+    private final int mask;
+    private int size;
+    private int newest = -1;
+    private int oldest = -1;
+    private final Map<Object, Integer> strategyIds = new HashMap<>();
+    private Object lastCacheKey; // Последний ключ вида транспорта и его номер
+    private int lastStrategyId;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public QuoteCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Емкость кэша должна быть положительной");
+        }
+        this.capacity = capacity;
+        distanceKeys = new long[capacity];
+        tripKeys = new long[capacity];
+        versions = new long[capacity];
+        costs = new double[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+        slots = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        mask = slots.length - 1;
+    }
+
+    private static int hash(long distanceKey, long tripKey) {
+        long h = distanceKey * 0x9E3779B97F4A7C15L + tripKey;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    // Номер вида транспорта; у повторяющегося ключа берется без поиска
+    private int strategyId(ICostCalculationStrategy strategy) {
+        Object cacheKey = strategy.getCacheKey();
+        if (cacheKey != lastCacheKey) {
+            Integer id = strategyIds.get(cacheKey);
+            if (id == null) {
+                if (strategyIds.size() == MAX_STRATEGIES) {
+                    throw new IllegalStateException("Слишком много видов транспорта в кэше");
+                }
+                id = strategyIds.size();
+                strategyIds.put(cacheKey, id);
+            }
+            lastCacheKey = cacheKey;
+            lastStrategyId = id;
+        }
+        return lastStrategyId;
+    }
+
+    // Стоимость из кэша или от стратегии. Расчеты других стратегий остаются в кэше;
+    // смена версии стратегии делает недействительными только ее записи
+    public double quote(ICostCalculationStrategy strategy, long strategyVersion,
+                        double distance, int passengers, String serviceClass) {
+        long distanceKey = Double.doubleToLongBits(distance);
+        long tripKey = ((long) strategyId(strategy) << 40) | ((passengers & 0xFFFFFFFFL) << 8)
+                | (ServiceClass.code(serviceClass) & 0xFF);
+        int slot = hash(distanceKey, tripKey) & mask;
+        for (int entry; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+            entry--;
+            if (distanceKeys[entry] == distanceKey && tripKeys[entry] == tripKey) {
+                moveToNewest(entry);
+                if (versions[entry] == strategyVersion) {
+                    hitCount++;
+                    return costs[entry];
+                }
+                missCount++; // Запись прежней версии пересчитывается на месте
+                costs[entry] = strategy.calculateCost(distance, passengers, serviceClass);
+                versions[entry] = strategyVersion;
+                return costs[entry];
+            }
+        }
+        missCount++;
+        double cost = strategy.calculateCost(distance, passengers, serviceClass);
+        int entry;
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = oldest;
+            unlink(entry);
+            removeSlot(entry);
+            evictionCount++;
+            slot = hash(distanceKey, tripKey) & mask; // Удаление могло сдвинуть цепочку
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        distanceKeys[entry] = distanceKey;
+        tripKeys[entry] = tripKey;
+        versions[entry] = strategyVersion;
+        costs[entry] = cost;
+        slots[slot] = entry + 1;
+        linkNewest(entry);
         return cost;
     }
+
+    private void moveToNewest(int entry) {
+        if (entry != newest) {
+            unlink(entry);
+            linkNewest(entry);
+        }
+    }
+
+    private void linkNewest(int entry) {
+        older[entry] = newest;
+        newer[entry] = -1;
+        if (newest >= 0) {
+            newer[newest] = entry;
+        } else {
+            oldest = entry;
+        }
+        newest = entry;
+    }
+
+    private void unlink(int entry) {
+        if (newer[entry] >= 0) {
+            older[newer[entry]] = older[entry];
+        } else {
+            newest = older[entry];
+        }
+        if (older[entry] >= 0) {
+            newer[older[entry]] = newer[entry];
+        } else {
+            oldest = newer[entry];
+        }
+    }
+
+    // Удаление записи из таблицы со сдвигом следующих элементов цепочки на место пропуска
+    private void removeSlot(int entry) {
+        int gap = hash(distanceKeys[entry], tripKeys[entry]) & mask;
+        while (slots[gap] != entry + 1) {
+            gap = (gap + 1) & mask;
+        }
+        for (int slot = (gap + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int other = slots[slot] - 1;
+            int home = hash(distanceKeys[other], tripKeys[other]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                slots[gap] = slots[slot];
+                gap = slot;
+            }
+        }
+        slots[gap] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        newest = -1;
+        oldest = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
 }
 
 class TravelBookingContext {
     private ICostCalculationStrategy strategy;
+    private QuoteCache quoteCache;
 
+    // Кэш расчетов не сбрасывается: записи каждого вида транспорта хранятся под своим ключом
     public void setStrategy(ICostCalculationStrategy strategy) {
         this.strategy = strategy;
     }
 
+    // Кэш последних capacity расчетов перед стратегией
+    public void enableQuoteCache(int capacity) {
+        quoteCache = new QuoteCache(capacity);
+    }
+
+    // Кэш со счетчиками попаданий, промахов и вытеснений; null, если кэш не включен
+    public QuoteCache getQuoteCache() {
+        return quoteCache;
+    }
+
     public double calculateTripCost(double distance, int passengers, String serviceClass) {
+        if (quoteCache != null) {
+            return quoteCache.quote(strategy, strategy.getVersion(), distance, passengers, serviceClass);
+        }
         return strategy.calculateCost(distance, passengers, serviceClass);
     }
+
+    // Стоимость всех поездок пакета; costs должен вмещать batch.size() значений
+    public void calculateTripCosts(TripBatch batch, double[] costs) {
+        strategy.calculateCosts(batch.getDistances(), batch.getPassengers(), batch.getServiceClassCodes(),
+                costs, batch.size());
+    }
+}
+
+// Стоимость пакета поездок всеми видами транспорта и самый дешевый вид для каждой поездки
+class QuoteMatrix {
+    private final String[] modes;
+    private final double[][] costs; // costs[вид][поездка]
+    private final int[] cheapest;
+
+    public QuoteMatrix(String[] modes, double[][] costs, int[] cheapest) {
+        this.modes = modes;
+        this.costs = costs;
+        this.cheapest = cheapest;
+    }
+
+    public int size() {
+        return cheapest.length;
+    }
+
+    public String[] getModes() {
+        return modes.clone();
+    }
+
+    public double cost(int mode, int trip) {
+        return costs[mode][trip];
+    }
+
+    public String cheapestMode(int trip) {
+        return modes[cheapest[trip]];
+    }
+
+    public double cheapestCost(int trip) {
+        return costs[cheapest[trip]][trip];
+    }
+}
+
+// Потокобезопасный сервис сравнения видов транспорта. В отличие от TravelBookingContext
+// не хранит изменяемую текущую стратегию: все зарегистрированные стратегии считают пакет
+// параллельно на пуле fork-join, части пакета делятся между потоками
+class MultiModalQuoteService {
+    private static final int SPLIT_THRESHOLD = 4096; // Поездок в одной задаче
+
+    // Неизменяемый снимок зарегистрированных стратегий
+    private static final class Registry {
+        final String[] modes;
+        final ICostCalculationStrategy[] strategies;
+
+        Registry(String[] modes, ICostCalculationStrategy[] strategies) {
+            this.modes = modes;
+            this.strategies = strategies;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private volatile Registry registry = new Registry(new String[0], new ICostCalculationStrategy[0]);
+
+    public MultiModalQuoteService() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public MultiModalQuoteService(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Регистрация или замена стратегии вида транспорта; идущие расчеты видят прежний снимок
+    public synchronized void register(String mode, ICostCalculationStrategy strategy) {
+        Registry current = registry;
+        int index = Arrays.asList(current.modes).indexOf(mode);
+        String[] modes = current.modes;
+        ICostCalculationStrategy[] strategies = current.strategies;
+        if (index < 0) {
+            index = modes.length;
+            modes = Arrays.copyOf(modes, index + 1);
+            modes[index] = mode;
+            strategies = Arrays.copyOf(strategies, index + 1);
+        } else {
+            strategies = strategies.clone();
+        }
+        strategies[index] = strategy;
+        registry = new Registry(modes, strategies);
+    }
+
+    // Расчет пакета; пакет не должен меняться до возврата результата. Можно вызывать
+    // одновременно из многих потоков
+    public QuoteMatrix quote(TripBatch batch) {
+        Registry snapshot = registry;
+        if (snapshot.modes.length == 0) {
+            throw new IllegalStateException("Не зарегистрировано ни одной стратегии");
+        }
+        double[][] costs = new double[snapshot.modes.length][batch.size()];
+        int[] cheapest = new int[batch.size()];
+        QuoteTask task = new QuoteTask(snapshot.strategies, batch, costs, cheapest, 0, batch.size());
+        if (batch.size() <= SPLIT_THRESHOLD) {
+            task.compute(); // Маленький пакет дешевле посчитать в вызывающем потоке
+        } else {
+            pool.invoke(task);
+        }
+        return new QuoteMatrix(snapshot.modes, costs, cheapest);
+    }
+
+    // Задача над поездками [from, to): делится пополам, лист считает все виды и минимум
+    private static final class QuoteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ICostCalculationStrategy[] strategies;
+        private final TripBatch batch;
+        private final double[][] costs;
+        private final int[] cheapest;
+        private final int from;
+        private final int to;
+
+        QuoteTask(ICostCalculationStrategy[] strategies, TripBatch batch, double[][] costs, int[] cheapest,
+                  int from, int to) {
+            this.strategies = strategies;
+            this.batch = batch;
+            this.costs = costs;
+            this.cheapest = cheapest;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new QuoteTask(strategies, batch, costs, cheapest, from, middle),
+                        new QuoteTask(strategies, batch, costs, cheapest, middle, to));
+                return;
+            }
+            for (int mode = 0; mode < strategies.length; mode++) {
+                strategies[mode].calculateCosts(batch.getDistances(), batch.getPassengers(),
+                        batch.getServiceClassCodes(), costs[mode], from, to);
+            }
+            // При равной стоимости выигрывает вид, зарегистрированный раньше
+            for (int trip = from; trip < to; trip++) {
+                int best = 0;
+                for (int mode = 1; mode < strategies.length; mode++) {
+                    if (costs[mode][trip] < costs[best][trip]) {
+                        best = mode;
+                    }
+                }
+                cheapest[trip] = best;
+            }
+        }
+    }
 }
 
 public class Main {
@@ -65,5 +803,46 @@ public class Main {
 
         context.setStrategy(new BusCostCalculation());
         System.out.println("Стоимость поездки на автобусе: " + context.calculateTripCost(500, 2, "business"));
+
+        // Пакетный расчет нескольких поездок одним вызовом
+        TripBatch batch = new TripBatch();
+        batch.add(500, 2, "business");
+        batch.add(1200, 1, "economy");
+        double[] costs = new double[batch.size()];
+        context.calculateTripCosts(batch, costs);
+        System.out.println("Стоимость пакета поездок на автобусе: " + Arrays.toString(costs));
+
+        // Самый дешевый вид транспорта для каждой поездки пакета
+        MultiModalQuoteService quoteService = new MultiModalQuoteService();
+        quoteService.register("самолет", new AirplaneCostCalculation());
+        quoteService.register("поезд", new TrainCostCalculation());
+        quoteService.register("автобус", new BusCostCalculation());
+        QuoteMatrix matrix = quoteService.quote(batch);
+        for (int trip = 0; trip < matrix.size(); trip++) {
+            System.out.println("Поездка " + (trip + 1) + ": дешевле всего " + matrix.cheapestMode(trip)
+                    + " за " + matrix.cheapestCost(trip));
+        }
+
+        // Расчет по тарифам из файла; файл можно перечитать без остановки расчетов
+        Path tariffFile = Paths.get("tariffs.txt");
+        if (Files.exists(tariffFile)) {
+            try {
+                TariffEngine engine = new TariffEngine(Tariff.load(tariffFile));
+                context.enableQuoteCache(1024);
+                context.setStrategy(new TariffCostCalculation(engine, "airplane"));
+                System.out.println("Стоимость поездки на самолете по тарифу: "
+                        + context.calculateTripCost(1500, 6, "business"));
+                context.calculateTripCost(1500, 6, "business"); // Повторный запрос берется из кэша
+                context.setStrategy(new TariffCostCalculation(engine, "train"));
+                context.calculateTripCost(1500, 6, "business");
+                context.setStrategy(new TariffCostCalculation(engine, "airplane"));
+                context.calculateTripCost(1500, 6, "business"); // Смена стратегии не сбрасывает кэш
+                QuoteCache cache = context.getQuoteCache();
+                System.out.println("Кэш расчетов: попаданий " + cache.getHitCount()
+                        + ", промахов " + cache.getMissCount());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }